@@ -0,0 +1,61 @@
+package org.vaadin.data.tx.benchmarks;
+
+import com.vaadin.data.Property;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * commit() and rollback() of a transaction with {@value #EDITS} property edits, {@value #STRUCTURAL_CHANGES} removed
+ * and {@value #STRUCTURAL_CHANGES} added items. Each iteration is a single commit or rollback of a transaction
+ * prepared before the iteration, so only the commit or rollback itself is measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50)
+@Measurement(iterations = 200)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class CommitRollbackBenchmark {
+
+    static final int EDITS = 1000;
+    static final int STRUCTURAL_CHANGES = 10;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Iteration)
+    public void prepareTransaction(WrapperState state) {
+        for (int i = 0; i < EDITS; i++) {
+            Property<String> property = (Property<String>) state.wrapper.getContainerProperty(
+                    state.nextItemId(), "description");
+            property.setValue("Edit " + i);
+        }
+        for (int i = 0; i < STRUCTURAL_CHANGES; i++) {
+            state.wrapper.removeItem(state.nextItemId());
+        }
+        for (int i = 0; i < STRUCTURAL_CHANGES; i++) {
+            state.wrapper.addItems(state.nextIndex() % state.wrapper.size(),
+                    Arrays.asList(state.container.createNewItemId()));
+        }
+    }
+
+    @Benchmark
+    public void commit(WrapperState state) {
+        state.wrapper.commit();
+    }
+
+    @Benchmark
+    public void rollback(WrapperState state) {
+        state.wrapper.rollback();
+    }
+}
@@ -0,0 +1,93 @@
+package org.vaadin.data.tx.benchmarks;
+
+import com.vaadin.data.Property;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+import org.vaadin.data.tx.TxWriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a single property edit through the wrapper, also with the edits appended to a write-ahead log. The
+ * pending changes are rolled back after each iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class EditBenchmark {
+
+    private long counter;
+
+    /**
+     * A second wrapper of the same container, logging its changes to a temporary file.
+     */
+    @State(Scope.Benchmark)
+    public static class LoggedState {
+        TransactionalContainerWrapper wrapper;
+        TxWriteAheadLog log;
+
+        @Setup(Level.Trial)
+        public void open(WrapperState state) throws IOException {
+            File file = File.createTempFile("benchmark", ".log");
+            file.deleteOnExit();
+            log = new TxWriteAheadLog(file);
+            wrapper = new TransactionalContainerWrapper(state.container, state.container);
+            wrapper.setWriteAheadLog(log);
+        }
+
+        @TearDown(Level.Iteration)
+        public void rollback() {
+            wrapper.rollback();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            log.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public void editProperty(WrapperState state) {
+        Property<String> property = (Property<String>) state.wrapper.getContainerProperty(
+                state.nextItemId(), "description");
+        property.setValue(counter++ % 2 == 0 ? "Edited" : "Edited again");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public void editLoggedProperty(WrapperState state, LoggedState logged) {
+        Property<String> property = (Property<String>) logged.wrapper.getContainerProperty(
+                logged.wrapper.getIdByIndex(state.nextIndex()), "description");
+        property.setValue(counter++ % 2 == 0 ? "Edited" : "Edited again");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public Object readEditedProperty(WrapperState state) {
+        Property<String> property = (Property<String>) state.wrapper.getContainerProperty(
+                state.nextItemId(), "name");
+        return property.getValue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void rollback(WrapperState state) {
+        state.wrapper.rollback();
+    }
+}
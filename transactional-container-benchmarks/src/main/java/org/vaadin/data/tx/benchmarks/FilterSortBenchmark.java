@@ -0,0 +1,49 @@
+package org.vaadin.data.tx.benchmarks;
+
+import com.vaadin.data.util.filter.SimpleStringFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering and sorting through the wrapper.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class FilterSortBenchmark {
+
+    private boolean ascending;
+
+    /**
+     * Applies a filter matching 0.1% of the rows and removes it again.
+     */
+    @Benchmark
+    public int filter(WrapperState state) {
+        state.wrapper.addContainerFilter(new SimpleStringFilter("name", "Ticket 42", false, false));
+        int size = state.wrapper.size();
+        state.wrapper.removeAllContainerFilters();
+        return size;
+    }
+
+    /**
+     * Sorts by status and creation time, alternating the direction.
+     */
+    @Benchmark
+    public Object sort(WrapperState state) {
+        ascending = !ascending;
+        state.wrapper.sort(new Object[]{"status", "createdAt"}, new boolean[]{ascending, ascending});
+        return state.wrapper.firstItemId();
+    }
+}
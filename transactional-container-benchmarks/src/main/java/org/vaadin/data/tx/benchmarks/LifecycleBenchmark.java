@@ -0,0 +1,34 @@
+package org.vaadin.data.tx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation of a wrapper and reset() of an existing one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class LifecycleBenchmark {
+
+    @Benchmark
+    public TransactionalContainerWrapper construct(WrapperState state) {
+        return new TransactionalContainerWrapper(state.container, state.container);
+    }
+
+    @Benchmark
+    public int reset(WrapperState state) {
+        state.wrapper.reset();
+        return state.wrapper.size();
+    }
+}
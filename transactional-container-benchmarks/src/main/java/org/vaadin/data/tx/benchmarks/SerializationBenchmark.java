@@ -0,0 +1,125 @@
+package org.vaadin.data.tx.benchmarks;
+
+import com.vaadin.data.Property;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a wrapper in a typical editing session: every tenth row has been read, 100 rows have been edited,
+ * 10 rows removed and 10 added, and 50 properties have value change listeners. The size of the wrapper itself, i.e.
+ * without the wrapped container, is reported as the wrapperBytes secondary result. The benchmark measures writing the
+ * container and then the wrapper to the same stream, so the container dominates the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SerializationBenchmark {
+
+    /**
+     * A wrapper in the middle of an editing session.
+     */
+    @State(Scope.Benchmark)
+    public static class SessionState {
+        TransactionalContainerWrapper wrapper;
+
+        @SuppressWarnings("unchecked")
+        @Setup(Level.Trial)
+        public void edit(WrapperState state) {
+            wrapper = new TransactionalContainerWrapper(state.container, state.container);
+            for (int i = 0; i < wrapper.size(); i += 10) {
+                wrapper.getItem(wrapper.getIdByIndex(i));
+            }
+            for (int i = 0; i < 100; i++) {
+                ((Property<String>) wrapper.getContainerProperty(state.nextItemId(), "description"))
+                        .setValue("Edited " + i);
+            }
+            for (int i = 0; i < 10; i++) {
+                wrapper.removeItem(state.nextItemId());
+                wrapper.addItemAt(state.nextIndex() % wrapper.size());
+            }
+            for (int i = 0; i < 50; i++) {
+                ((Property.ValueChangeNotifier) wrapper.getContainerProperty(wrapper.getIdByIndex(i), "name"))
+                        .addValueChangeListener(new NoopListener());
+            }
+        }
+    }
+
+    /**
+     * Size of the serialized wrapper, reported with the results of the benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SizeCounters {
+        /**
+         * Bytes written for the wrapper without the container, the same on every invocation.
+         */
+        public long wrapperBytes;
+    }
+
+    /**
+     * Value change listener standing for the listeners added by components.
+     */
+    static class NoopListener implements Property.ValueChangeListener {
+        @Override
+        public void valueChange(Property.ValueChangeEvent event) {
+        }
+    }
+
+    /**
+     * Output stream which only counts the bytes.
+     */
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Benchmark
+    public long serializeWrapper(WrapperState state, SessionState session, SizeCounters counters)
+            throws IOException {
+        counters.wrapperBytes = serialize(state, session);
+        return counters.wrapperBytes;
+    }
+
+    /**
+     * Writes the container and then the wrapper to a stream.
+     *
+     * @return number of bytes written for the wrapper
+     */
+    static long serialize(WrapperState state, SessionState session) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(counter);
+        out.writeObject(state.container);
+        out.flush();
+        long containerBytes = counter.count;
+        out.writeObject(session.wrapper);
+        out.close();
+        return counter.count - containerBytes;
+    }
+}
@@ -0,0 +1,74 @@
+package org.vaadin.data.tx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * addItemAt() and removeItem() through the wrapper. The first structural change of a transaction starts the overlay
+ * of changes over the item ids of the wrapped container, so both the first changes of a transaction and changes
+ * within an already changed item set are measured. Each iteration is a batch of {@value #BATCH_SIZE} changes, which
+ * are rolled back after the iteration, and the score is the time of the whole batch.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = StructureBenchmark.BATCH_SIZE)
+@Measurement(iterations = 50, batchSize = StructureBenchmark.BATCH_SIZE)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StructureBenchmark {
+
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Wrapper which is rolled back after each iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class RolledBackState extends WrapperState {
+        @TearDown(Level.Iteration)
+        public void rollback() {
+            wrapper.rollback();
+        }
+    }
+
+    /**
+     * Wrapper with one removed item, so that its item set is already changed.
+     */
+    @State(Scope.Benchmark)
+    public static class ChangedState extends RolledBackState {
+        @Setup(Level.Iteration)
+        public void removeFirstItem() {
+            wrapper.removeItem(wrapper.firstItemId());
+        }
+    }
+
+    @Benchmark
+    public Object addItemAt(RolledBackState state) {
+        return state.wrapper.addItemAt(state.nextIndex());
+    }
+
+    @Benchmark
+    public boolean removeItem(RolledBackState state) {
+        return state.wrapper.removeItem(state.nextItemId());
+    }
+
+    @Benchmark
+    public Object addItemAtInChangedSet(ChangedState state) {
+        return state.wrapper.addItemAt(state.nextIndex() % state.wrapper.size());
+    }
+
+    @Benchmark
+    public boolean removeItemInChangedSet(ChangedState state) {
+        return state.wrapper.removeItem(state.nextItemId());
+    }
+}
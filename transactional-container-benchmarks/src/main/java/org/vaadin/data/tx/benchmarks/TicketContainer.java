@@ -0,0 +1,68 @@
+package org.vaadin.data.tx.benchmarks;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.util.IndexedContainer;
+import com.vaadin.data.util.ObjectProperty;
+import com.vaadin.data.util.PropertysetItem;
+import org.vaadin.data.tx.ItemGenerator;
+
+import java.util.Date;
+
+/**
+ * Container of generated ticket rows used as the wrapped container in the benchmarks. The rows have the properties
+ * of the tickets of the demo application.
+ */
+public class TicketContainer extends IndexedContainer implements ItemGenerator {
+
+    private static final String[] STATUSES = {"BACKLOG", "NOT_STARTED", "IN_PROGRESS", "DONE"};
+
+    private long idSeq;
+
+    public TicketContainer() {
+        addContainerProperty("name", String.class, null);
+        addContainerProperty("description", String.class, null);
+        addContainerProperty("createdAt", Date.class, null);
+        addContainerProperty("hold", Boolean.class, false);
+        addContainerProperty("status", String.class, null);
+    }
+
+    /**
+     * Creates a container with the given number of tickets. Names repeat every 1000 rows, so that a name filter
+     * matches 0.1% of the rows.
+     *
+     * @param rows
+     *            number of tickets
+     * @return new container
+     */
+    @SuppressWarnings("unchecked")
+    public static TicketContainer newFilledContainer(int rows) {
+        TicketContainer container = new TicketContainer();
+        long createdAt = 1400000000000L;
+        for (int i = 0; i < rows; i++) {
+            Item item = container.addItem((long) i);
+            item.getItemProperty("name").setValue("Ticket " + (i % 1000));
+            item.getItemProperty("description").setValue("Description of ticket " + i);
+            item.getItemProperty("createdAt").setValue(new Date(createdAt - i * 60000L));
+            item.getItemProperty("hold").setValue(i % 7 == 0);
+            item.getItemProperty("status").setValue(STATUSES[i % STATUSES.length]);
+        }
+        container.idSeq = rows;
+        return container;
+    }
+
+    @Override
+    public Item createNewItem(Object itemId) {
+        PropertysetItem item = new PropertysetItem();
+        item.addItemProperty("name", new ObjectProperty<String>(null, String.class));
+        item.addItemProperty("description", new ObjectProperty<String>(null, String.class));
+        item.addItemProperty("createdAt", new ObjectProperty<Date>(null, Date.class));
+        item.addItemProperty("hold", new ObjectProperty<Boolean>(false, Boolean.class));
+        item.addItemProperty("status", new ObjectProperty<String>(null, String.class));
+        return item;
+    }
+
+    @Override
+    public Object createNewItemId() {
+        return idSeq++;
+    }
+}
@@ -0,0 +1,57 @@
+package org.vaadin.data.tx.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+
+import java.util.Random;
+
+/**
+ * Benchmark state with a filled ticket container and a wrapper around it. The container is created once per trial
+ * for each dataset size.
+ */
+@State(Scope.Benchmark)
+public class WrapperState {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    public TicketContainer container;
+    public TransactionalContainerWrapper wrapper;
+
+    /**
+     * Random row indexes, used in turn to pick the rows to work with.
+     */
+    public int[] randomIndexes;
+    private int nextRandom;
+
+    @Setup(Level.Trial)
+    public void createContainer() {
+        container = TicketContainer.newFilledContainer(rows);
+        wrapper = new TransactionalContainerWrapper(container, container);
+        Random random = new Random(42);
+        randomIndexes = new int[4096];
+        for (int i = 0; i < randomIndexes.length; i++) {
+            randomIndexes[i] = random.nextInt(rows);
+        }
+    }
+
+    /**
+     * @return next random row index, always smaller than the initial number of rows
+     */
+    public int nextIndex() {
+        int index = randomIndexes[nextRandom];
+        nextRandom = (nextRandom + 1) % randomIndexes.length;
+        return index;
+    }
+
+    /**
+     * @return id of the wrapper item at the next random index
+     */
+    public Object nextItemId() {
+        return wrapper.getIdByIndex(nextIndex() % wrapper.size());
+    }
+}
@@ -131,9 +131,7 @@ public class MyUI extends UI {
             public void buttonClick(Button.ClickEvent event) {
                 {
                     Collection<Object> selectedRowIds = txGrid.getSelectedRows();
-                    for (Object selectedRowId : selectedRowIds) {
-                        txContainer.removeItem(selectedRowId);
-                    }
+                    txContainer.removeItems(selectedRowIds);
                     txGrid.select(null);
                 }
             }
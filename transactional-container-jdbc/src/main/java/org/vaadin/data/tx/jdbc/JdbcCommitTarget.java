@@ -0,0 +1,380 @@
+package org.vaadin.data.tx.jdbc;
+
+import org.vaadin.data.tx.ChangeSet;
+import org.vaadin.data.tx.CommitTarget;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JdbcCommitTarget is a {@link CommitTarget} which writes the changes of a TransactionalContainerWrapper to a database
+ * table. Deletes, inserts and updates are sent as batches of {@link PreparedStatement}s within a single JDBC
+ * transaction, so the table is changed either completely or not at all. An update or delete which matches no row, for
+ * example because the row has been deleted by someone else, fails the commit.
+ * <p>
+ * Every property to be stored has to be mapped to a column with {@link #mapProperty(Object, String)}; properties
+ * without a mapping are not written. The item id is stored in the id column. Updates write only the modified
+ * properties, and updates with the same set of modified properties share a batch.
+ * </p>
+ * <p>
+ * If the wrapped container is a mirror of the table, set it as the delegate with {@link #setDelegate(CommitTarget)}.
+ * The delegate is called after the statements have been executed, and the JDBC transaction is committed only if the
+ * delegate succeeds. An asynchronous commit of the wrapper updates the wrapped container itself, so for
+ * {@link org.vaadin.data.tx.TransactionalContainerWrapper#commitAsync(java.util.concurrent.Executor,
+ * java.util.concurrent.Executor)} the delegate must not write the wrapped container.
+ * </p>
+ * <p>
+ * The data source is kept in the commit target, so it has to be serializable if the wrapper is.
+ * </p>
+ */
+public class JdbcCommitTarget implements CommitTarget {
+
+    /**
+     * Default number of statements sent to the database in one batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(JdbcCommitTarget.class.getName());
+
+    private final DataSource dataSource;
+    private final String tableName;
+    private final String idColumn;
+    private final Map<Object, String> columnsByPropertyId = new LinkedHashMap<Object, String>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private CommitTarget delegate;
+
+    /**
+     * Creates a new JdbcCommitTarget.
+     *
+     * @param dataSource
+     *            Source of the database connections.
+     * @param tableName
+     *            Name of the table to write to.
+     * @param idColumn
+     *            Name of the column containing the item ids.
+     */
+    public JdbcCommitTarget(DataSource dataSource, String tableName,
+            String idColumn) {
+        if (dataSource == null || tableName == null || idColumn == null) {
+            throw new IllegalArgumentException(
+                    "Data source, table name and id column must not be null");
+        }
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.idColumn = idColumn;
+    }
+
+    /**
+     * Maps a property to a table column. A property mapped to the id column is not written, the item id is used
+     * instead.
+     *
+     * @param propertyId
+     *            Id of the property.
+     * @param column
+     *            Name of the column.
+     * @return this commit target
+     */
+    public JdbcCommitTarget mapProperty(Object propertyId, String column) {
+        if (column == null) {
+            throw new IllegalArgumentException("Column must not be null");
+        }
+        columnsByPropertyId.put(propertyId, column);
+        return this;
+    }
+
+    /**
+     * @return the columns by property id
+     */
+    public Map<Object, String> getColumnMapping() {
+        return new LinkedHashMap<Object, String>(columnsByPropertyId);
+    }
+
+    /**
+     * @return maximum number of statements sent to the database in one batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of statements sent to the database in one batch.
+     *
+     * @param batchSize
+     *            positive batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return commit target called within the JDBC transaction, or null
+     */
+    public CommitTarget getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Sets a commit target, which is called after the statements have been executed and before the JDBC transaction
+     * is committed. Typically it is an {@link org.vaadin.data.tx.IndexedCommitTarget} of the container which mirrors
+     * the table.
+     *
+     * @param delegate
+     *            commit target, or null
+     */
+    public void setDelegate(CommitTarget delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void applyChanges(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            if (delegate != null) {
+                delegate.applyChanges(changes);
+            }
+            return;
+        }
+        Connection connection = null;
+        boolean autoCommit = true;
+        try {
+            connection = dataSource.getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                writeDeletes(connection, changes.getDeletedItemIds());
+                writeInserts(connection, changes.getInsertedItems());
+                writeUpdates(connection, changes.getUpdatedItems());
+                if (delegate != null) {
+                    delegate.applyChanges(changes);
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(connection);
+                throw e;
+            } catch (RuntimeException e) {
+                rollback(connection);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Commit to table " + tableName
+                    + " failed", e);
+        } finally {
+            close(connection, autoCommit);
+        }
+    }
+
+    /**
+     * Rolls the JDBC transaction back. A failure of the rollback is logged, so that the caller throws the original
+     * failure of the commit.
+     */
+    private void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Rollback of the commit to table " + tableName + " failed", e);
+        }
+    }
+
+    private void writeDeletes(Connection connection, List<Object> deletedItemIds)
+            throws SQLException {
+        if (deletedItemIds.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch(connection, "DELETE FROM " + tableName
+                + " WHERE " + idColumn + " = ?");
+        try {
+            for (Object itemId : deletedItemIds) {
+                batch.statement.setObject(1, toJdbcValue(null, itemId));
+                batch.add(itemId);
+            }
+            batch.flush();
+        } finally {
+            batch.close();
+        }
+    }
+
+    private void writeInserts(Connection connection,
+            List<ChangeSet.InsertedItem> insertedItems) throws SQLException {
+        if (insertedItems.isEmpty()) {
+            return;
+        }
+        List<Object> propertyIds = new ArrayList<Object>();
+        StringBuilder columns = new StringBuilder(idColumn);
+        StringBuilder parameters = new StringBuilder("?");
+        for (Map.Entry<Object, String> mapping : columnsByPropertyId.entrySet()) {
+            if (!mapping.getValue().equals(idColumn)) {
+                propertyIds.add(mapping.getKey());
+                columns.append(", ").append(mapping.getValue());
+                parameters.append(", ?");
+            }
+        }
+        Batch batch = new Batch(connection, "INSERT INTO " + tableName + " ("
+                + columns + ") VALUES (" + parameters + ")");
+        try {
+            for (ChangeSet.InsertedItem insertedItem : insertedItems) {
+                batch.statement.setObject(1,
+                        toJdbcValue(null, insertedItem.getItemId()));
+                Map<Object, Object> values = insertedItem.getValues();
+                for (int i = 0; i < propertyIds.size(); i++) {
+                    Object propertyId = propertyIds.get(i);
+                    batch.statement.setObject(i + 2,
+                            toJdbcValue(propertyId, values.get(propertyId)));
+                }
+                batch.add(insertedItem.getItemId());
+            }
+            batch.flush();
+        } finally {
+            batch.close();
+        }
+    }
+
+    private void writeUpdates(Connection connection,
+            List<ChangeSet.UpdatedItem> updatedItems) throws SQLException {
+        Map<List<Object>, Batch> batches = new LinkedHashMap<List<Object>, Batch>();
+        try {
+            for (ChangeSet.UpdatedItem updatedItem : updatedItems) {
+                List<Object> propertyIds = new ArrayList<Object>();
+                for (Object propertyId : updatedItem.getValues().keySet()) {
+                    String column = columnsByPropertyId.get(propertyId);
+                    if (column != null && !column.equals(idColumn)) {
+                        propertyIds.add(propertyId);
+                    }
+                }
+                if (propertyIds.isEmpty()) {
+                    continue;
+                }
+                Batch batch = batches.get(propertyIds);
+                if (batch == null) {
+                    batch = new Batch(connection, updateSql(propertyIds));
+                    batches.put(propertyIds, batch);
+                }
+                Map<Object, Object> values = updatedItem.getValues();
+                for (int i = 0; i < propertyIds.size(); i++) {
+                    Object propertyId = propertyIds.get(i);
+                    batch.statement.setObject(i + 1,
+                            toJdbcValue(propertyId, values.get(propertyId)));
+                }
+                batch.statement.setObject(propertyIds.size() + 1,
+                        toJdbcValue(null, updatedItem.getItemId()));
+                batch.add(updatedItem.getItemId());
+            }
+            for (Batch batch : batches.values()) {
+                batch.flush();
+            }
+        } finally {
+            for (Batch batch : batches.values()) {
+                batch.close();
+            }
+        }
+    }
+
+    private String updateSql(List<Object> propertyIds) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(tableName)
+                .append(" SET ");
+        for (int i = 0; i < propertyIds.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columnsByPropertyId.get(propertyIds.get(i))).append(
+                    " = ?");
+        }
+        return sql.append(" WHERE ").append(idColumn).append(" = ?")
+                .toString();
+    }
+
+    /**
+     * Converts a property value or an item id to a value passed to {@link PreparedStatement#setObject(int, Object)}.
+     * By default dates are converted to timestamps and enums to their names. Override to add conversions.
+     *
+     * @param propertyId
+     *            Id of the property, or null for an item id.
+     * @param value
+     *            Value to convert, may be null.
+     * @return value for the statement parameter
+     */
+    protected Object toJdbcValue(Object propertyId, Object value) {
+        if (value instanceof Date && !(value instanceof java.sql.Date)
+                && !(value instanceof java.sql.Time)
+                && !(value instanceof Timestamp)) {
+            return new Timestamp(((Date) value).getTime());
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value;
+    }
+
+    private static void close(Connection connection, boolean autoCommit) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException ignored) {
+            // the connection is closed anyway
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * A prepared statement with the item ids of the rows added to the current batch.
+     */
+    private class Batch {
+        private final PreparedStatement statement;
+        private final List<Object> pendingItemIds = new ArrayList<Object>();
+
+        Batch(Connection connection, String sql) throws SQLException {
+            statement = connection.prepareStatement(sql);
+        }
+
+        void add(Object itemId) throws SQLException {
+            statement.addBatch();
+            pendingItemIds.add(itemId);
+            if (pendingItemIds.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Executes the current batch, failing if a statement has changed no row. Drivers which do not report the
+         * counts return {@link java.sql.Statement#SUCCESS_NO_INFO}, which is accepted.
+         */
+        void flush() throws SQLException {
+            if (pendingItemIds.isEmpty()) {
+                return;
+            }
+            int[] updateCounts = statement.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] == 0) {
+                    throw new SQLException("No row of table " + tableName + " with id "
+                            + pendingItemIds.get(i) + " was changed");
+                }
+            }
+            pendingItemIds.clear();
+        }
+
+        void close() {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+                // the transaction is committed or rolled back anyway
+            }
+        }
+    }
+}
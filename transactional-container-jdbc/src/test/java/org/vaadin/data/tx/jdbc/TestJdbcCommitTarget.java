@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.data.tx.jdbc;
+
+import com.vaadin.data.Property;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.data.tx.ChangeSet;
+import org.vaadin.data.tx.CommitTarget;
+import org.vaadin.data.tx.IndexedCommitTarget;
+import org.vaadin.data.tx.MeetupBeanContainer;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+import org.vaadin.data.tx.domain.Meetup;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests for writing the changes to a database
+ *
+ * @author Vaadin Ltd
+ */
+public class TestJdbcCommitTarget {
+
+    private static final String DESCRIPTION = "description";
+
+    private JdbcDataSource dataSource;
+    private Connection keepAlive;
+    private MeetupBeanContainer backedContainer;
+    private TransactionalContainerWrapper transactionalContainer;
+    private JdbcCommitTarget commitTarget;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:meetups");
+        keepAlive = dataSource.getConnection();
+        execute("CREATE TABLE MEETUP (ID BIGINT PRIMARY KEY, DESCRIPTION VARCHAR(100), STARTS TIMESTAMP)");
+        backedContainer = new MeetupBeanContainer();
+        backedContainer.setBeanIdProperty("id");
+        for (long id = 1; id <= 5; id++) {
+            execute("INSERT INTO MEETUP (ID, DESCRIPTION) VALUES (" + id + ", 'M " + id + "')");
+            backedContainer.addBean(new Meetup(id, "M " + id, null, null));
+        }
+        transactionalContainer = new TransactionalContainerWrapper(backedContainer, backedContainer);
+        commitTarget = new JdbcCommitTarget(dataSource, "MEETUP", "ID")
+                .mapProperty("id", "ID")
+                .mapProperty(DESCRIPTION, "DESCRIPTION")
+                .mapProperty("when", "STARTS");
+        commitTarget.setDelegate(new IndexedCommitTarget(backedContainer));
+        transactionalContainer.setCommitTarget(commitTarget);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        keepAlive.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommit() throws SQLException {
+        Date when = new Date(1000000000000L);
+        ((Property<String>) transactionalContainer.getContainerProperty(2L, DESCRIPTION)).setValue("Updated");
+        ((Property<Date>) transactionalContainer.getContainerProperty(3L, "when")).setValue(when);
+        transactionalContainer.removeItem(4L);
+        transactionalContainer.addItems(0, Arrays.asList(10L, 11L));
+        ((Property<String>) transactionalContainer.getContainerProperty(10L, DESCRIPTION)).setValue("New");
+
+        transactionalContainer.commit();
+
+        assertEquals(Arrays.asList("1:M 1", "2:Updated", "3:M 3", "5:M 5", "10:New", "11:null"),
+                selectDescriptions());
+        assertEquals(when.getTime(), selectLong("SELECT STARTS FROM MEETUP WHERE ID = 3", true));
+        assertEquals(6, backedContainer.size());
+        assertEquals((Object) 10L, backedContainer.firstItemId());
+        assertEquals("Updated", backedContainer.getContainerProperty(2L, DESCRIPTION).getValue());
+        assertTrue(transactionalContainer.getPendingChanges().isEmpty());
+    }
+
+    @Test
+    public void testBatchSize() throws SQLException {
+        commitTarget.setBatchSize(3);
+        List<Long> newIds = new ArrayList<Long>();
+        for (long id = 100; id < 110; id++) {
+            newIds.add(id);
+        }
+        transactionalContainer.addItems(transactionalContainer.size(), newIds);
+        transactionalContainer.removeItems(Arrays.asList(1L, 2L, 3L, 4L));
+
+        transactionalContainer.commit();
+
+        assertEquals(11L, selectLong("SELECT COUNT(*) FROM MEETUP", false));
+        assertEquals(11, backedContainer.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFailureRollsBackDatabase() throws SQLException {
+        execute("INSERT INTO MEETUP (ID, DESCRIPTION) VALUES (20, 'Outside')");
+        ((Property<String>) transactionalContainer.getContainerProperty(1L, DESCRIPTION)).setValue("Updated");
+        transactionalContainer.removeItem(5L);
+        transactionalContainer.addItems(0, Arrays.asList(20L));
+
+        try {
+            transactionalContainer.commit();
+            fail("Duplicate key must fail the commit");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        assertEquals(Arrays.asList("1:M 1", "2:M 2", "3:M 3", "4:M 4", "5:M 5", "20:Outside"),
+                selectDescriptions());
+        assertEquals(5, backedContainer.size());
+        ChangeSet pendingChanges = transactionalContainer.getPendingChanges();
+        assertEquals(1, pendingChanges.getInsertedItems().size());
+        assertEquals(1, pendingChanges.getUpdatedItems().size());
+        assertEquals(Arrays.<Object>asList(5L), pendingChanges.getDeletedItemIds());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMissingRowFailsCommit() throws SQLException {
+        execute("DELETE FROM MEETUP WHERE ID = 3");
+        ((Property<String>) transactionalContainer.getContainerProperty(1L, DESCRIPTION)).setValue("Updated");
+        ((Property<String>) transactionalContainer.getContainerProperty(3L, DESCRIPTION)).setValue("Updated");
+
+        try {
+            transactionalContainer.commit();
+            fail("Update of a deleted row must fail the commit");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+
+        assertEquals(Arrays.asList("1:M 1", "2:M 2", "4:M 4", "5:M 5"), selectDescriptions());
+        assertEquals(2, transactionalContainer.getPendingChanges().getUpdatedItems().size());
+
+        execute("DELETE FROM MEETUP WHERE ID = 4");
+        transactionalContainer.rollback();
+        transactionalContainer.removeItem(4L);
+        try {
+            transactionalContainer.commit();
+            fail("Delete of a deleted row must fail the commit");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(5, backedContainer.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDelegateFailureRollsBackDatabase() throws SQLException {
+        commitTarget.setDelegate(new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+                throw new IllegalStateException("Mirror is not available");
+            }
+        });
+        ((Property<String>) transactionalContainer.getContainerProperty(1L, DESCRIPTION)).setValue("Updated");
+
+        try {
+            transactionalContainer.commit();
+            fail("Delegate failure must fail the commit");
+        } catch (IllegalStateException ignored) {
+        }
+
+        assertEquals("1:M 1", selectDescriptions().get(0));
+        assertFalse(transactionalContainer.getPendingChanges().isEmpty());
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = keepAlive.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long selectLong(String sql, boolean timestamp) throws SQLException {
+        Statement statement = keepAlive.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery(sql);
+            resultSet.next();
+            return timestamp ? resultSet.getTimestamp(1).getTime() : resultSet.getLong(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private List<String> selectDescriptions() throws SQLException {
+        List<String> result = new ArrayList<String>();
+        Statement statement = keepAlive.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT ID, DESCRIPTION FROM MEETUP ORDER BY ID");
+            while (resultSet.next()) {
+                result.add(resultSet.getLong(1) + ":" + resultSet.getString(2));
+            }
+        } finally {
+            statement.close();
+        }
+        return result;
+    }
+}
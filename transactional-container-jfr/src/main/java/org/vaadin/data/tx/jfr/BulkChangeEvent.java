@@ -0,0 +1,14 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Addition or removal of many items of a TransactionalContainerWrapper at once.
+ */
+@Name("org.vaadin.data.tx.BulkChange")
+@Label("Bulk Change")
+@Description("Addition or removal of many items at once, the item count is the number of added or removed items.")
+class BulkChangeEvent extends TxOperationEvent {
+}
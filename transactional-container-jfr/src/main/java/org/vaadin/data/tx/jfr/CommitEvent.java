@@ -0,0 +1,15 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Commit of the pending changes of a TransactionalContainerWrapper.
+ */
+@Name("org.vaadin.data.tx.Commit")
+@Label("Commit")
+@Description("Commit of the pending changes, the item count is the number of changed items. For an asynchronous "
+        + "commit the event spans the update of the wrapper after the changes have been applied.")
+class CommitEvent extends TxOperationEvent {
+}
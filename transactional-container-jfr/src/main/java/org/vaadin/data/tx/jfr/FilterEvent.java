@@ -0,0 +1,14 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Filter pass over all items of a TransactionalContainerWrapper.
+ */
+@Name("org.vaadin.data.tx.Filter")
+@Label("Filter")
+@Description("Filter pass over all items, the item count is the number of filtered items.")
+class FilterEvent extends TxOperationEvent {
+}
@@ -0,0 +1,99 @@
+package org.vaadin.data.tx.jfr;
+
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+import org.vaadin.data.tx.TxMetricsListener;
+import org.vaadin.data.tx.TxOperation;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * JfrMetricsListener emits Java Flight Recorder events for the operations of a TransactionalContainerWrapper, so that
+ * slow commits, filter passes and bulk changes can be correlated with garbage collections and lock contention in a
+ * recording. The events are in the category "Vaadin / Transactional Container".
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ * wrapper.addMetricsListener(new JfrMetricsListener());
+ * </pre>
+ * <p>
+ * A single listener may be added to any number of wrappers. When the events are not recorded, the cost of an
+ * operation is the creation of an event object.
+ * </p>
+ */
+public class JfrMetricsListener implements TxMetricsListener {
+
+    /**
+     * Events of the operations in progress by thread, the innermost one first.
+     */
+    private final ThreadLocal<Deque<TxOperationEvent>> events = new ThreadLocal<Deque<TxOperationEvent>>() {
+        @Override
+        protected Deque<TxOperationEvent> initialValue() {
+            return new ArrayDeque<TxOperationEvent>();
+        }
+    };
+
+    @Override
+    public void operationStarted(TransactionalContainerWrapper wrapper, TxOperation operation) {
+        TxOperationEvent event = newEvent(operation);
+        event.begin();
+        events.get().push(event);
+    }
+
+    @Override
+    public void operationCompleted(TransactionalContainerWrapper wrapper, TxOperation operation, int itemCount,
+            long durationNanos) {
+        Deque<TxOperationEvent> started = events.get();
+        TxOperationEvent event;
+        // Operations which failed with an exception have not been completed
+        do {
+            event = started.poll();
+        } while (event != null && !operation.name().equals(event.operation));
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.itemCount = itemCount;
+            event.containerSize = wrapper.size();
+            event.pendingInserts = wrapper.getPendingInsertCount();
+            event.pendingUpdates = wrapper.getPendingUpdateCount();
+            event.pendingDeletes = wrapper.getPendingDeleteCount();
+            event.commit();
+        }
+    }
+
+    /**
+     * Creates the event type of an operation.
+     *
+     * @param operation
+     *            an operation
+     * @return new event, not begun
+     */
+    private static TxOperationEvent newEvent(TxOperation operation) {
+        TxOperationEvent event;
+        switch (operation) {
+        case COMMIT:
+            event = new CommitEvent();
+            break;
+        case ROLLBACK:
+            event = new RollbackEvent();
+            break;
+        case RESET:
+            event = new ResetEvent();
+            break;
+        case FILTER:
+            event = new FilterEvent();
+            break;
+        case TX_LISTENERS:
+            event = new TxListenersEvent();
+            break;
+        default:
+            event = new BulkChangeEvent();
+            break;
+        }
+        event.operation = operation.name();
+        return event;
+    }
+}
@@ -0,0 +1,14 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Reset of the wrapper of a TransactionalContainerWrapper.
+ */
+@Name("org.vaadin.data.tx.Reset")
+@Label("Reset")
+@Description("Reset of the wrapper, the item count is the number of items after the reset.")
+class ResetEvent extends TxOperationEvent {
+}
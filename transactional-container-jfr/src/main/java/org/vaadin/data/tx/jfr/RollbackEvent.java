@@ -0,0 +1,14 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Rollback of the pending changes of a TransactionalContainerWrapper.
+ */
+@Name("org.vaadin.data.tx.Rollback")
+@Label("Rollback")
+@Description("Rollback of the pending changes, the item count is the number of discarded item changes.")
+class RollbackEvent extends TxOperationEvent {
+}
@@ -0,0 +1,15 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Notification of the transaction listeners of a TransactionalContainerWrapper.
+ */
+@Name("org.vaadin.data.tx.TxListeners")
+@Label("Transaction Listeners")
+@Description("Notification of the transaction listeners, for example of an implicitly started transaction. The "
+        + "item count is the number of listeners.")
+class TxListenersEvent extends TxOperationEvent {
+}
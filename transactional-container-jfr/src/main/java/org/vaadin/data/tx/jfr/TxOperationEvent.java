@@ -0,0 +1,35 @@
+package org.vaadin.data.tx.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base class of the Flight Recorder events of the operations of a TransactionalContainerWrapper. An event spans the
+ * operation, and carries the item count reported for the operation and the size and pending changes of the wrapper
+ * after it.
+ */
+@Category({"Vaadin", "Transactional Container"})
+public abstract class TxOperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Item Count")
+    @Description("Number of items or listeners the operation worked on")
+    int itemCount;
+
+    @Label("Container Size")
+    @Description("Number of visible items after the operation")
+    int containerSize;
+
+    @Label("Pending Inserts")
+    int pendingInserts;
+
+    @Label("Pending Updates")
+    int pendingUpdates;
+
+    @Label("Pending Deletes")
+    int pendingDeletes;
+}
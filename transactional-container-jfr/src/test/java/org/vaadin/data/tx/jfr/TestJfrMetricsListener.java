@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2014 Vaadin Ltd.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.vaadin.data.tx.jfr;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.util.IndexedContainer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.vaadin.data.tx.TransactionalContainerWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for the Flight Recorder events
+ *
+ * @author Vaadin Ltd
+ */
+public class TestJfrMetricsListener {
+
+    private static final String NAME = "name";
+    private static final List<String> ENABLED_EVENTS = Arrays.asList("org.vaadin.data.tx.Commit",
+            "org.vaadin.data.tx.Filter", "org.vaadin.data.tx.BulkChange");
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEvents() throws IOException {
+        IndexedContainer container = new IndexedContainer();
+        container.addContainerProperty(NAME, String.class, "");
+        for (int i = 0; i < 10; i++) {
+            container.addItem(i);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(container);
+        wrapper.addMetricsListener(new JfrMetricsListener());
+
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        Recording recording = new Recording();
+        try {
+            for (String name : ENABLED_EVENTS) {
+                recording.enable(name);
+            }
+            recording.start();
+
+            ((Property<String>) wrapper.getContainerProperty(0, NAME)).setValue("Edited");
+            wrapper.removeItems(Arrays.asList(1, 2, 3));
+            wrapper.commit();
+            wrapper.addContainerFilter(NAME, "Edited", false, false);
+
+            recording.stop();
+            File file = File.createTempFile("recording", ".jfr");
+            file.deleteOnExit();
+            recording.dump(file.toPath());
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                // Custom events are enabled by default, only the enabled ones are checked
+                if (ENABLED_EVENTS.contains(event.getEventType().getName())) {
+                    events.add(event);
+                }
+            }
+        } finally {
+            recording.close();
+        }
+
+        assertEquals(3, events.size());
+        RecordedEvent removal = events.get(0);
+        assertEquals("org.vaadin.data.tx.BulkChange", removal.getEventType().getName());
+        assertEquals("REMOVE_ITEMS", removal.getString("operation"));
+        assertEquals(3, removal.getInt("itemCount"));
+        assertEquals(3, removal.getInt("pendingDeletes"));
+        assertEquals(1, removal.getInt("pendingUpdates"));
+        assertEquals(7, removal.getInt("containerSize"));
+
+        RecordedEvent commit = events.get(1);
+        assertEquals("org.vaadin.data.tx.Commit", commit.getEventType().getName());
+        assertEquals(4, commit.getInt("itemCount"));
+        assertEquals(0, commit.getInt("pendingDeletes"));
+        assertTrue(commit.getDuration().toNanos() > 0);
+
+        RecordedEvent filter = events.get(2);
+        assertEquals("org.vaadin.data.tx.Filter", filter.getEventType().getName());
+        assertEquals(7, filter.getInt("itemCount"));
+        assertEquals(1, filter.getInt("containerSize"));
+    }
+}
@@ -0,0 +1,140 @@
+package org.vaadin.data.tx;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ChangeSet is an immutable set of the changes made within a transaction of a TransactionalContainerWrapper. It is
+ * passed to a {@link CommitTarget} when the transaction is committed, and it is available at any time with
+ * {@link TransactionalContainerWrapper#getPendingChanges()}. The change set is a snapshot: later changes of the
+ * wrapper are not reflected in it.
+ */
+public final class ChangeSet implements Serializable {
+
+    /**
+     * A new item added within the transaction.
+     */
+    public static final class InsertedItem implements Serializable {
+        private final Object itemId;
+        private final Object previousItemId;
+        private final int index;
+        private final Map<Object, Object> values;
+
+        InsertedItem(Object itemId, Object previousItemId, int index,
+                Map<Object, Object> values) {
+            this.itemId = itemId;
+            this.previousItemId = previousItemId;
+            this.index = index;
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<Object, Object>(values));
+        }
+
+        /**
+         * @return id of the new item
+         */
+        public Object getItemId() {
+            return itemId;
+        }
+
+        /**
+         * @return id of the item preceding the new one, or null if the new item is the first one. The previous item
+         * is either an existing item or an inserted item which comes earlier in the change set.
+         */
+        public Object getPreviousItemId() {
+            return previousItemId;
+        }
+
+        /**
+         * @return position of the new item in the unfiltered item list of the wrapper
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return property values of the new item by property id
+         */
+        public Map<Object, Object> getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * An existing item with modified property values.
+     */
+    public static final class UpdatedItem implements Serializable {
+        private final Object itemId;
+        private final Map<Object, Object> values;
+        private final Map<Object, Object> oldValues;
+
+        UpdatedItem(Object itemId, Map<Object, Object> values,
+                Map<Object, Object> oldValues) {
+            this.itemId = itemId;
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<Object, Object>(values));
+            this.oldValues = Collections.unmodifiableMap(new LinkedHashMap<Object, Object>(oldValues));
+        }
+
+        /**
+         * @return id of the modified item
+         */
+        public Object getItemId() {
+            return itemId;
+        }
+
+        /**
+         * @return new values of the modified properties by property id
+         */
+        public Map<Object, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return values of the modified properties in the underlying container by property id
+         */
+        public Map<Object, Object> getOldValues() {
+            return oldValues;
+        }
+    }
+
+    private final List<InsertedItem> insertedItems;
+    private final List<UpdatedItem> updatedItems;
+    private final List<Object> deletedItemIds;
+
+    ChangeSet(List<InsertedItem> insertedItems, List<UpdatedItem> updatedItems,
+            List<Object> deletedItemIds) {
+        this.insertedItems = Collections.unmodifiableList(insertedItems);
+        this.updatedItems = Collections.unmodifiableList(updatedItems);
+        this.deletedItemIds = Collections.unmodifiableList(deletedItemIds);
+    }
+
+    /**
+     * @return new items in the order of their positions
+     */
+    public List<InsertedItem> getInsertedItems() {
+        return insertedItems;
+    }
+
+    /**
+     * @return existing items with modified property values
+     */
+    public List<UpdatedItem> getUpdatedItems() {
+        return updatedItems;
+    }
+
+    /**
+     * @return ids of the removed items
+     */
+    public List<Object> getDeletedItemIds() {
+        return deletedItemIds;
+    }
+
+    /**
+     * @return true if there are no changes
+     */
+    public boolean isEmpty() {
+        return insertedItems.isEmpty() && updatedItems.isEmpty()
+                && deletedItemIds.isEmpty();
+    }
+}
@@ -0,0 +1,22 @@
+package org.vaadin.data.tx;
+
+import java.io.Serializable;
+
+/**
+ * CommitTarget is an interface for applying committed changes of a TransactionalContainerWrapper. The whole change set
+ * is passed in one call, so implementations may apply it in bulk. If the wrapped container implements this interface,
+ * it is used as the commit target, otherwise the changes are applied item by item with {@link IndexedCommitTarget}.
+ * <p>
+ * After the changes have been applied, every inserted item must be available from the wrapped container.
+ * </p>
+ */
+public interface CommitTarget extends Serializable {
+
+    /**
+     * Applies the given changes. If an exception is thrown, the transaction stays open with all its pending changes.
+     *
+     * @param changes
+     *            changes to apply
+     */
+    void applyChanges(ChangeSet changes);
+}
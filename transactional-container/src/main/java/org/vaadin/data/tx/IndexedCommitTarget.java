@@ -0,0 +1,63 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+import java.util.Map;
+
+/**
+ * IndexedCommitTarget is the default {@link CommitTarget}, which applies the changes to a {@link Container.Indexed}
+ * item by item: removed items are removed, new items are added with addItemAfter() and property values are set one
+ * by one.
+ * <p>
+ * The container looks up the previous item of each new item itself, which is a linear scan in the in-memory
+ * containers of Vaadin. Containers which need to insert many items at once can implement {@link CommitTarget}
+ * and use {@link ChangeSet.InsertedItem#getIndex()} instead.
+ * </p>
+ */
+public class IndexedCommitTarget implements CommitTarget {
+
+    private final Container.Indexed container;
+
+    /**
+     * Creates a new IndexedCommitTarget for the given container.
+     *
+     * @param container
+     *            Container to apply the changes to.
+     */
+    public IndexedCommitTarget(Container.Indexed container) {
+        this.container = container;
+    }
+
+    @Override
+    public void applyChanges(ChangeSet changes) {
+        for (Object deletedId : changes.getDeletedItemIds()) {
+            container.removeItem(deletedId);
+        }
+        for (ChangeSet.InsertedItem insertedItem : changes.getInsertedItems()) {
+            Item actualItem = container.addItemAfter(
+                    insertedItem.getPreviousItemId(), insertedItem.getItemId());
+            if (actualItem == null) {
+                throw new RuntimeException("Addition of new item "
+                        + insertedItem.getItemId() + " failed");
+            }
+            setValues(actualItem, insertedItem.getValues());
+        }
+        for (ChangeSet.UpdatedItem updatedItem : changes.getUpdatedItems()) {
+            setValues(container.getItem(updatedItem.getItemId()),
+                    updatedItem.getValues());
+        }
+    }
+
+    private static void setValues(Item item, Map<Object, Object> values) {
+        for (Map.Entry<Object, Object> idValueEntry : values.entrySet()) {
+            @SuppressWarnings("unchecked")
+            Property<Object> itemProperty = item.getItemProperty(idValueEntry
+                    .getKey());
+            if (itemProperty != null && !itemProperty.isReadOnly()) {
+                itemProperty.setValue(idValueEntry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Item;
+
+import java.io.Serializable;
+
+/**
+ * ItemVersionProvider is an interface for providing version stamps of the items of the wrapped container, used by
+ * TransactionalContainerWrapper for optimistic concurrency control. The version of an item is captured when the item
+ * is wrapped, and compared with the current version when the changes of the item are committed. If the versions are
+ * not equal, another transaction has changed the item in the meantime.
+ *
+ * @see TransactionalContainerWrapper#setItemVersionProvider(ItemVersionProvider)
+ */
+public interface ItemVersionProvider extends Serializable {
+
+    /**
+     * Returns the current version of an item of the wrapped container. Versions are compared with
+     * {@link Object#equals(Object)}, so the returned object must not change when the item changes.
+     *
+     * @param itemId
+     *            Id of the item.
+     * @param item
+     *            The item in the wrapped container.
+     * @return version of the item, may be null
+     */
+    Object getVersion(Object itemId, Item item);
+}
@@ -0,0 +1,93 @@
+package org.vaadin.data.tx;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram is an internal histogram of durations used by TxMetrics. Durations are counted in buckets of
+ * exponentially growing width, four per power of two, so percentiles are accurate to about 20 % with a fixed amount
+ * of memory. Methods are synchronized, as the durations are recorded by the session thread and may be read by a JMX
+ * thread.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] buckets = new long[64 * SUB_BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    synchronized void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        buckets[bucketOf(nanos)]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * Durations below {@link #SUB_BUCKETS} have a bucket each, larger ones are bucketed by their highest bit and the
+     * bits after it.
+     */
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return largest duration falling into the bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (1L << highestBit) | ((long) (bucket % SUB_BUCKETS) << (highestBit - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (highestBit - SUB_BUCKET_BITS)) - 1;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percentile
+     *         percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile, at most the maximum duration; 0 if nothing has
+     * been recorded
+     */
+    synchronized long getPercentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+}
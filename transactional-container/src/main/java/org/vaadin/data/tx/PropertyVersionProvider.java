@@ -0,0 +1,50 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PropertyVersionProvider is an {@link ItemVersionProvider} which uses property values as the version of an item.
+ * With a single property, such as a version number or a modification time stamp maintained by the persistence layer,
+ * the version is the value of that property. With several properties the version is the list of their values, so an
+ * item counts as changed if any of them has a different value.
+ */
+public class PropertyVersionProvider implements ItemVersionProvider {
+
+    private final List<Object> propertyIds;
+
+    /**
+     * Creates a new PropertyVersionProvider.
+     *
+     * @param propertyIds
+     *            Ids of the properties forming the version, at least one.
+     */
+    public PropertyVersionProvider(Object... propertyIds) {
+        if (propertyIds.length == 0) {
+            throw new IllegalArgumentException(
+                    "At least one property id is required");
+        }
+        this.propertyIds = new ArrayList<Object>(Arrays.asList(propertyIds));
+    }
+
+    @Override
+    public Object getVersion(Object itemId, Item item) {
+        if (propertyIds.size() == 1) {
+            return getValue(item, propertyIds.get(0));
+        }
+        List<Object> values = new ArrayList<Object>(propertyIds.size());
+        for (Object propertyId : propertyIds) {
+            values.add(getValue(item, propertyId));
+        }
+        return values;
+    }
+
+    private static Object getValue(Item item, Object propertyId) {
+        Property<?> property = item.getItemProperty(propertyId);
+        return property == null ? null : property.getValue();
+    }
+}
@@ -0,0 +1,226 @@
+package org.vaadin.data.tx;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Savepoint marks a state within a transaction of a TransactionalContainerWrapper, see
+ * {@link TransactionalContainerWrapper#setSavepoint()}. A savepoint records only what is changed after it: the
+ * previous state of every item and property on their first change, and the changes of the item order. So its memory
+ * cost depends on the number of changes made after it, not on the size of the container, except for sorting: each
+ * sort after the savepoint records the former order of all item ids, which costs memory in proportion to the size of
+ * the container.
+ */
+public final class Savepoint implements Serializable {
+
+    /**
+     * Marker of a map entry or a pending value which did not exist. An enum constant stays the same instance after
+     * deserialization.
+     */
+    private enum Marker {
+        ABSENT
+    }
+
+    private enum IdListChangeKind {
+        ADDED, REMOVED, REORDERED
+    }
+
+    /**
+     * A change of the item id list: added ids, removed ids with their former positions in ascending order, or the
+     * former order of all ids.
+     */
+    private static final class IdListChange implements Serializable {
+        private final IdListChangeKind kind;
+        private final List<Object> ids;
+        private final int[] positions;
+
+        IdListChange(IdListChangeKind kind, List<Object> ids, int[] positions) {
+            this.kind = kind;
+            this.ids = ids;
+            this.positions = positions;
+        }
+    }
+
+    private Map<Object, Object> allItemsBefore = new HashMap<Object, Object>();
+    private Map<Object, Object> deletedBefore = new HashMap<Object, Object>();
+    private Map<Object, Object> dirtyBefore = new HashMap<Object, Object>();
+    private Map<TxPropertyWrapper<?>, Object> pendingValuesBefore = new HashMap<TxPropertyWrapper<?>, Object>();
+    private List<IdListChange> idListChanges = new ArrayList<IdListChange>();
+    /**
+     * Whether the container had been sorted when the savepoint was set.
+     */
+    private final boolean sorted;
+
+    Savepoint(boolean sorted) {
+        this.sorted = sorted;
+    }
+
+    /**
+     * @return true if the container had been sorted when the savepoint was set
+     */
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Records the state of an item in the item maps, unless it has been recorded already.
+     */
+    void recordItem(Object itemId, Map<Object, TxItemWrapper> allItems,
+            Map<Object, TxItemWrapper> deletedById,
+            Map<Object, TxItemWrapper> dirtyById) {
+        recordEntry(allItemsBefore, allItems, itemId);
+        recordEntry(deletedBefore, deletedById, itemId);
+        recordEntry(dirtyBefore, dirtyById, itemId);
+    }
+
+    private static void recordEntry(Map<Object, Object> before,
+            Map<Object, TxItemWrapper> current, Object itemId) {
+        if (!before.containsKey(itemId)) {
+            before.put(itemId, current.containsKey(itemId) ? current.get(itemId) : Marker.ABSENT);
+        }
+    }
+
+    /**
+     * Records the pending value of a property, unless it has been recorded already.
+     */
+    void recordPendingValue(TxPropertyWrapper<?> propertyWrapper) {
+        if (!pendingValuesBefore.containsKey(propertyWrapper)) {
+            pendingValuesBefore.put(propertyWrapper, propertyWrapper.hasPendingValue()
+                    ? propertyWrapper.getValue() : Marker.ABSENT);
+        }
+    }
+
+    void recordAdded(List<Object> addedIds) {
+        idListChanges.add(new IdListChange(IdListChangeKind.ADDED, addedIds, null));
+    }
+
+    /**
+     * @param removedIds
+     *         removed ids in the order of their former positions
+     * @param positions
+     *         former positions in ascending order
+     */
+    void recordRemoved(List<Object> removedIds, int[] positions) {
+        idListChanges.add(new IdListChange(IdListChangeKind.REMOVED, removedIds, positions));
+    }
+
+    /**
+     * @param formerOrder
+     *         all item ids in their order before sorting, a copy kept until the savepoint is released
+     */
+    void recordReordered(List<Object> formerOrder) {
+        idListChanges.add(new IdListChange(IdListChangeKind.REORDERED, formerOrder, null));
+    }
+
+    /**
+     * @return true if the item id list has been changed after this savepoint
+     */
+    boolean hasIdListChanges() {
+        return !idListChanges.isEmpty();
+    }
+
+    /**
+     * @return true if the item ids have been sorted after this savepoint
+     */
+    boolean isReordered() {
+        for (IdListChange change : idListChanges) {
+            if (change.kind == IdListChangeKind.REORDERED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the ids of the items changed after this savepoint to the given set.
+     */
+    void collectChangedItemIds(Set<Object> itemIds) {
+        itemIds.addAll(allItemsBefore.keySet());
+        for (IdListChange change : idListChanges) {
+            if (change.kind != IdListChangeKind.REORDERED) {
+                itemIds.addAll(change.ids);
+            }
+        }
+    }
+
+    /**
+     * Reverts the recorded changes and clears the records.
+     */
+    void undo(Map<Object, TxItemWrapper> allItems,
+            Map<Object, TxItemWrapper> deletedById,
+            Map<Object, TxItemWrapper> dirtyById, List<Object> itemIds) {
+        for (Map.Entry<TxPropertyWrapper<?>, Object> propertyValueEntry : pendingValuesBefore.entrySet()) {
+            Object value = propertyValueEntry.getValue();
+            propertyValueEntry.getKey().restorePendingValue(value != Marker.ABSENT, value);
+        }
+        restoreEntries(allItemsBefore, allItems);
+        restoreEntries(deletedBefore, deletedById);
+        restoreEntries(dirtyBefore, dirtyById);
+        for (int i = idListChanges.size() - 1; i >= 0; i--) {
+            IdListChange change = idListChanges.get(i);
+            switch (change.kind) {
+            case ADDED:
+                itemIds.removeAll(new HashSet<Object>(change.ids));
+                break;
+            case REMOVED:
+                for (int j = 0; j < change.positions.length; j++) {
+                    itemIds.add(change.positions[j], change.ids.get(j));
+                }
+                break;
+            case REORDERED:
+                itemIds.clear();
+                itemIds.addAll(0, change.ids);
+                break;
+            }
+        }
+        clear();
+    }
+
+    private static void restoreEntries(Map<Object, Object> before,
+            Map<Object, TxItemWrapper> current) {
+        for (Map.Entry<Object, Object> idItemEntry : before.entrySet()) {
+            if (idItemEntry.getValue() == Marker.ABSENT) {
+                current.remove(idItemEntry.getKey());
+            } else {
+                current.put(idItemEntry.getKey(), (TxItemWrapper) idItemEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Moves the records of a later savepoint to this one. The records of this savepoint are older, so they win.
+     */
+    void merge(Savepoint later) {
+        mergeEntries(allItemsBefore, later.allItemsBefore);
+        mergeEntries(deletedBefore, later.deletedBefore);
+        mergeEntries(dirtyBefore, later.dirtyBefore);
+        for (Map.Entry<TxPropertyWrapper<?>, Object> propertyValueEntry : later.pendingValuesBefore.entrySet()) {
+            if (!pendingValuesBefore.containsKey(propertyValueEntry.getKey())) {
+                pendingValuesBefore.put(propertyValueEntry.getKey(), propertyValueEntry.getValue());
+            }
+        }
+        idListChanges.addAll(later.idListChanges);
+        later.clear();
+    }
+
+    private static void mergeEntries(Map<Object, Object> older, Map<Object, Object> later) {
+        for (Map.Entry<Object, Object> idItemEntry : later.entrySet()) {
+            if (!older.containsKey(idItemEntry.getKey())) {
+                older.put(idItemEntry.getKey(), idItemEntry.getValue());
+            }
+        }
+    }
+
+    private void clear() {
+        allItemsBefore = new HashMap<Object, Object>();
+        deletedBefore = new HashMap<Object, Object>();
+        dirtyBefore = new HashMap<Object, Object>();
+        pendingValuesBefore = new HashMap<TxPropertyWrapper<?>, Object>();
+        idListChanges = new ArrayList<IdListChange>();
+    }
+}
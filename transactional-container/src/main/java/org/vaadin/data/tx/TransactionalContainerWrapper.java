@@ -6,13 +6,27 @@ import com.vaadin.data.Property;
 import com.vaadin.data.util.AbstractInMemoryContainer;
 import com.vaadin.data.util.filter.SimpleStringFilter;
 import com.vaadin.data.util.filter.UnsupportedFilterException;
+import com.vaadin.shared.util.SharedUtil;
+import com.vaadin.ui.UI;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 /**
  * TransactionalContainerWrapper is a Vaadin Container which wraps around another container to provide transactional commits and
@@ -23,7 +37,50 @@ import java.util.Map;
  * transaction start by adding or removing an item or by modifying any property value.
  * </p>
  * Transaction should be finalized by calling either commit() to apply the changes to the underlying container, or
- * rollback() to discard the changes and re-sync with the underlying container.
+ * rollback() to discard the changes. Rollback reverts only the pending changes, use reset() to fully re-sync with the
+ * underlying container.
+ * <p>
+ * Within a transaction, setSavepoint() marks the current state, and rollbackToSavepoint() discards only the changes
+ * made after it.
+ * </p>
+ * <p>
+ * Items are wrapped when they are first accessed, and added and removed items are kept as changes over the ids of the
+ * underlying container, which are read a page at a time with {@link Indexed#getItemIds(int, int)}. The wrapper thus
+ * works on top of lazy containers without reading all of their ids.
+ * </p>
+ * <p>
+ * Single property edits, addItemAt() and removeItem() are recorded in a bounded journal, so that they can be reverted
+ * one by one with undo() and redo().
+ * </p>
+ * <p>
+ * Item set changes are notified with {@link Container.Indexed.ItemAddEvent}s and
+ * {@link Container.Indexed.ItemRemoveEvent}s carrying the index and the number of the affected items, so that
+ * components such as Grid can update only the affected rows. A generic item set change event is fired only for
+ * sorting and for changes which scatter over many ranges.
+ * </p>
+ * <p>
+ * For bulk edits, suspendNotifications() buffers the item set change and property value change events until the
+ * matching resumeNotifications(), which fires a single item set change event and one value change event per changed
+ * property.
+ * </p>
+ * <p>
+ * If the wrapped container is shared with other wrappers, an {@link ItemVersionProvider} enables optimistic
+ * concurrency control: commit() fails with a {@link TxConflictException} instead of overwriting changes committed by
+ * other wrappers since the items were read.
+ * </p>
+ * <p>
+ * commitAsync() applies the changes on another thread to a commit target which does not write the wrapped container,
+ * for example a database, and then updates the wrapped container and the wrapper, for example with UI.access().
+ * The wrapper can be read while the commit is in progress, changes to it are rejected.
+ * </p>
+ * <p>
+ * A {@link TxWriteAheadLog} set with setWriteAheadLog() records the pending changes in a memory-mapped file, so that
+ * recover() can rebuild the transaction after the node running the session has died.
+ * </p>
+ * <p>
+ * The durations of commits, rollbacks, resets, filter passes, bulk changes and {@link TxListener} notifications are
+ * reported to {@link TxMetricsListener}s, see {@link TxMetrics}. Without metrics listeners nothing is measured.
+ * </p>
  */
 public class TransactionalContainerWrapper extends
         AbstractInMemoryContainer<Object, Object, TxItemWrapper> implements
@@ -48,22 +105,110 @@ public class TransactionalContainerWrapper extends
         UNCOMMITTED
     }
 
+    /**
+     * Default maximum number of edits kept for undo.
+     */
+    public static final int DEFAULT_JOURNAL_SIZE = 100;
+
+    /**
+     * Maximum number of item add and remove events fired for a single change. A change scattering over more ranges
+     * of items is notified with a generic item set change event.
+     */
+    private static final int MAX_ITEM_SET_CHANGE_RANGES = 16;
+
     private final Indexed innerContainer;
     private final ItemGenerator itemGenerator;
+    /**
+     * Applies changes to the wrapped container, the default commit target.
+     */
+    private final CommitTarget innerCommitTarget;
+    private CommitTarget commitTarget;
+    private ItemVersionProvider itemVersionProvider;
+    /**
+     * Versions of the wrappers left out by serialization, used when the items are wrapped again.
+     */
+    private transient Map<Object, Object> restoredVersions;
 
-    private final Map<Object, TxItemWrapper> allItems = new LinkedHashMap<Object, TxItemWrapper>();
+    /**
+     * Item ids of the container, a view of the inner container ids with the added and removed ids.
+     */
+    private final TxItemIdList itemIds;
+    /**
+     * Wrappers of the items accessed so far. Wrappers are created on the first access, so untouched items of the
+     * inner container have none. Only the wrappers with pending changes or listeners are serialized, the others are
+     * created again when accessed.
+     */
+    private transient Map<Object, TxItemWrapper> allItems = new HashMap<Object, TxItemWrapper>();
+    /**
+     * Removed items of the inner container. The value is null if the item has never been accessed.
+     */
     private final Map<Object, TxItemWrapper> deletedById = new HashMap<Object, TxItemWrapper>();
+    /**
+     * Items which are new or have pending property values, fed by property modifications and item additions. Commit
+     * only walks this map and {@link #deletedById}, so its cost depends on the size of the change set only.
+     */
+    private final Map<Object, TxItemWrapper> dirtyById = new HashMap<Object, TxItemWrapper>();
+
+    /**
+     * Indexes of the property ids, shared by all items, which keep their pending values in arrays by property index.
+     */
+    private final Map<Object, Integer> propertyIndexes = new HashMap<Object, Integer>();
+    private final List<Object> indexedPropertyIds = new ArrayList<Object>();
 
     private final List<TxListener> transactionListeners = new ArrayList<TxListener>();
+    /**
+     * Listeners of the operation durations, null if there are none so that nothing is measured. Metrics are bound to
+     * the node, so they are not serialized.
+     */
+    private transient List<TxMetricsListener> metricsListeners;
+    /**
+     * Gauges of the pending changes published for the metrics, null if there are no metrics listeners. Single item
+     * changes update the counts, bulk changes replace them.
+     */
+    private transient volatile TxPendingCounts pendingCounts;
+
+    /**
+     * Active savepoints, the latest one last. Changes are recorded in the latest savepoint only.
+     */
+    private final List<Savepoint> savepoints = new ArrayList<Savepoint>();
+
+    private final TxJournal journal = new TxJournal(DEFAULT_JOURNAL_SIZE);
+
+    /**
+     * Log of the pending changes, or null. The log is bound to a file of the node, so it is not serialized.
+     */
+    private transient TxWriteAheadLog writeAheadLog;
+
+    /**
+     * Depth of nested {@link #suspendNotifications()} calls.
+     */
+    private int notificationSuspensions;
+    /**
+     * True if an item set change event has been held back while notifications are suspended.
+     */
+    private boolean itemSetChangeSuspended;
+    /**
+     * Properties with value change events held back while notifications are suspended, in the order of their first
+     * change.
+     */
+    private final Set<TxPropertyWrapper<?>> suspendedValueChanges = new LinkedHashSet<TxPropertyWrapper<?>>();
 
     private TxState state;
 
-    final Property.ValueChangeListener propertyValueChangeListener = new Property.ValueChangeListener() {
-        @Override
-        public void valueChange(Property.ValueChangeEvent valueChangeEvent) {
-            startImplicitTransaction();
-        }
-    };
+    /**
+     * True while an asynchronous commit is in progress, changes are rejected meanwhile.
+     */
+    private volatile boolean committing;
+    /**
+     * Changes of an asynchronous commit whose completion has been rejected by the completion executor. They have been
+     * applied to the commit target, and are applied to the wrapped container by the next change of the wrapper.
+     */
+    private transient volatile ChangeSet abandonedCommit;
+
+    /**
+     * True if the container has been sorted since the last reset, so the item order may differ from the inner one.
+     */
+    private boolean sorted;
 
     /**
      * Creates a new TransactionalContainerWrapper and wraps the given container. When using this constructor there will not be
@@ -77,306 +222,2137 @@ public class TransactionalContainerWrapper extends
     }
 
     /**
-     * Creates a new TransactionalContainerWrapper and wraps the given container. When using this constructor there will be support
-     * for adding new items to the container.
-     *
-     * @param innerContainer
-     *         Container to wrap.
-     * @param itemGenerator
-     *         New Item generator implementation.
+     * Creates a new TransactionalContainerWrapper and wraps the given container. When using this constructor there will be support
+     * for adding new items to the container.
+     *
+     * @param innerContainer
+     *         Container to wrap.
+     * @param itemGenerator
+     *         New Item generator implementation.
+     */
+    @SuppressWarnings("deprecation")
+    public TransactionalContainerWrapper(Indexed innerContainer,
+            ItemGenerator itemGenerator) {
+        this.innerContainer = innerContainer;
+        this.itemGenerator = itemGenerator;
+        itemIds = new TxItemIdList(innerContainer);
+        for (Object propertyId : innerContainer.getContainerPropertyIds()) {
+            indexOfPropertyId(propertyId);
+        }
+        setAllItemIds(itemIds);
+        setItemSorter(new TxItemSorter());
+        innerCommitTarget = innerContainer instanceof CommitTarget ? (CommitTarget) innerContainer
+                : new IndexedCommitTarget(innerContainer);
+        commitTarget = innerCommitTarget;
+
+        reset();
+    }
+
+    /**
+     * Resets the container state. Discards all changes and re-syncs with the underlying container.
+     */
+    public void reset() {
+        checkNotCommitting();
+        long startNanos = startTiming(TxOperation.RESET);
+        allItems.clear();
+        restoredVersions = null;
+        deletedById.clear();
+        dirtyById.clear();
+        savepoints.clear();
+        journal.clear();
+        clearWriteAheadLog();
+        itemIds.attach();
+        state = TxState.NOT_STARTED;
+        sorted = false;
+        recountPendingChanges();
+        filterAll();
+        operationCompleted(TxOperation.RESET, itemIds.size(), startNanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.data.util.AbstractInMemoryContainer#getUnfilteredItem(java
+     * .lang.Object)
+     */
+    @Override
+    protected TxItemWrapper getUnfilteredItem(Object itemId) {
+        TxItemWrapper txItemWrapper = allItems.get(itemId);
+        if (txItemWrapper == null && itemIds.contains(itemId)) {
+            Item item = innerContainer.getItem(itemId);
+            if (item != null) {
+                txItemWrapper = new TxItemWrapper(this, item, itemId, false);
+                if (restoredVersions != null && restoredVersions.containsKey(itemId)) {
+                    txItemWrapper.setVersion(restoredVersions.remove(itemId));
+                } else {
+                    captureVersion(txItemWrapper);
+                }
+                countItem(itemId, -1);
+                allItems.put(itemId, txItemWrapper);
+                countItem(itemId, 1);
+            }
+        }
+        return txItemWrapper;
+    }
+
+    /**
+     * @return item of the inner container, or null if there is no such item
+     */
+    Item getInnerItem(Object itemId) {
+        return innerContainer.getItem(itemId);
+    }
+
+    /**
+     * Returns the item filters should see: the wrapper if the item is new or has pending values, otherwise the inner
+     * item itself. Unlike {@link #getUnfilteredItem(Object)}, no wrapper is created for items without changes.
+     *
+     * @param itemId
+     *         id of an item of the container
+     * @return item with the current values
+     */
+    Item getReadThroughItem(Object itemId) {
+        TxItemWrapper txItemWrapper = dirtyById.get(itemId);
+        return txItemWrapper != null ? txItemWrapper : innerContainer.getItem(itemId);
+    }
+
+    /**
+     * Returns the current value of a property, i.e. the pending value if there is one and the inner value otherwise,
+     * without creating wrappers or property views for items without changes.
+     *
+     * @param itemId
+     *         id of an item of the container
+     * @param propertyId
+     *         property id
+     * @return current value, or null if there is no such property
+     */
+    Object getReadThroughValue(Object itemId, Object propertyId) {
+        TxItemWrapper txItemWrapper = dirtyById.get(itemId);
+        if (txItemWrapper != null) {
+            return txItemWrapper.getValue(propertyId);
+        }
+        Property<?> property = innerContainer.getContainerProperty(itemId, propertyId);
+        return property == null ? null : property.getValue();
+    }
+
+    /**
+     * Evaluates the filters against {@link #getReadThroughItem(Object)}, so that filtering does not wrap every item.
+     */
+    @Override
+    protected boolean passesFilters(Object itemId) {
+        Set<Filter> filters = getFilters();
+        if (filters.isEmpty()) {
+            return true;
+        }
+        Item item = getReadThroughItem(itemId);
+        for (Filter filter : filters) {
+            if (!filter.passesFilter(itemId, item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.tx.poc.container.TxAware#startTransaction()
+     */
+    @Override
+    public void startTransaction() {
+        if (state == TxState.NOT_STARTED) {
+            for (TxItemWrapper txItemWrapper : allItems.values()) {
+                txItemWrapper.startTransaction();
+            }
+            fireTransactionStarted(false);
+            state = TxState.STARTED;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.tx.poc.container.TxAware#commit()
+     */
+    @Override
+    public void commit() {
+        checkNotCommitting();
+        if (state != TxState.NOT_STARTED) {
+            long startNanos = startTiming(TxOperation.COMMIT);
+            ChangeSet changes = getPendingChanges();
+            applyChanges(changes);
+            commitCompleted(changes);
+            operationCompleted(TxOperation.COMMIT, changeCount(changes), startNanos);
+        }
+    }
+
+    /**
+     * Commits the pending changes asynchronously. The change set is taken right away and applied to the commit target
+     * by the given executor. The completion executor then applies the changes to the wrapped container the way the
+     * default commit target does, updates the wrapper, and notifies the {@link TxListener}s and the callbacks of the
+     * returned future. If applying the changes fails, the transaction stays open with all its pending changes.
+     * <p>
+     * The commit target must allow being called from the executor thread, and must not write the wrapped container,
+     * so that the wrapper can be read while the changes are applied. Typically it writes a database, for example a
+     * JdbcCommitTarget without a delegate.
+     * </p>
+     * <p>
+     * Until the commit has completed, changes to the wrapper are rejected: adding and removing items, setting
+     * property values, committing, rolling back, savepoints, undo and redo throw an {@link IllegalStateException}.
+     * Reading, sorting and filtering are allowed.
+     * </p>
+     * <p>
+     * If the completion executor rejects the completion, for example because the UI has been detached, the future
+     * fails on the executor thread. If the changes have been applied to the commit target, the future fails with the
+     * exception of the completion executor, and the next change of the wrapper applies them to the wrapped container
+     * first.
+     * </p>
+     * <p>
+     * Asynchronous commits do not check item versions. The versions come from the wrapped container, which is updated
+     * only after the commit target, so another wrapper could check its versions in between and overwrite the changes.
+     * Use {@link #commit()} if an {@link ItemVersionProvider} is set.
+     * </p>
+     *
+     * @param executor
+     *         executor applying the changes to the commit target
+     * @param completionExecutor
+     *         executor updating the wrapper after the changes have been applied or have failed, typically one which
+     *         runs the task while holding the session lock of the UI using the wrapper, see
+     *         {@link #commitAsync(Executor, UI)}
+     * @return future completing with the committed changes, at once with an empty change set if there is no
+     * transaction
+     * @throws IllegalStateException
+     *         if a commit is in progress already, the commit target is the default one, which writes the wrapped
+     *         container, or item versions are checked
+     */
+    public TxCommitFuture commitAsync(Executor executor, final Executor completionExecutor) {
+        checkNotCommitting();
+        if (commitTarget == innerCommitTarget) {
+            throw new IllegalStateException(
+                    "An asynchronous commit requires a commit target which does not write the wrapped container");
+        }
+        if (itemVersionProvider != null) {
+            throw new IllegalStateException("Item versions cannot be checked by an asynchronous commit");
+        }
+        final TxCommitFuture future = new TxCommitFuture();
+        if (state == TxState.NOT_STARTED) {
+            future.complete(getPendingChanges());
+            return future;
+        }
+        final ChangeSet changes = getPendingChanges();
+        committing = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+                    long applyStartNanos = System.nanoTime();
+                    try {
+                        applyChanges(changes);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    final long applyNanos = System.nanoTime() - applyStartNanos;
+                    final Throwable applyFailure = failure;
+                    try {
+                        completionExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                completeAsyncCommit(changes, applyFailure, applyNanos, future);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        if (applyFailure == null) {
+                            abandonAsyncCommit(changes, e, future);
+                        } else {
+                            abandonAsyncCommit(null, applyFailure, future);
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            committing = false;
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Commits the pending changes asynchronously, updating the wrapper and notifying the listeners with
+     * {@link UI#access(Runnable)} of the given UI, see {@link #commitAsync(Executor, Executor)}.
+     *
+     * @param executor
+     *         executor applying the changes to the commit target
+     * @param ui
+     *         UI using this wrapper
+     * @return future completing with the committed changes
+     * @throws IllegalStateException
+     *         if a commit is in progress already
+     */
+    public TxCommitFuture commitAsync(Executor executor, final UI ui) {
+        return commitAsync(executor, new UIAccessExecutor(ui));
+    }
+
+    /**
+     * Runs tasks with {@link UI#access(Runnable)}.
+     */
+    private static class UIAccessExecutor implements Executor, Serializable {
+        private final UI ui;
+
+        UIAccessExecutor(UI ui) {
+            this.ui = ui;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            ui.access(command);
+        }
+    }
+
+    /**
+     * @param applyNanos
+     *         time spent applying the changes, reported as a part of the commit duration
+     */
+    private void completeAsyncCommit(ChangeSet changes, Throwable failure, long applyNanos, TxCommitFuture future) {
+        committing = false;
+        if (failure != null) {
+            future.fail(failure);
+            return;
+        }
+        long startNanos = startTiming(TxOperation.COMMIT);
+        try {
+            applyToInnerContainer(changes);
+            commitCompleted(changes);
+        } catch (RuntimeException e) {
+            future.fail(e);
+            throw e;
+        }
+        operationCompleted(TxOperation.COMMIT, changeCount(changes), startNanos == 0 ? 0 : startNanos - applyNanos);
+        future.complete(changes);
+    }
+
+    /**
+     * Called by the executor thread if the completion executor has rejected the completion of an asynchronous
+     * commit. The wrapper is not touched, as the thread does not hold the session lock.
+     *
+     * @param changes
+     *         changes applied to the commit target, or null if applying them has failed
+     */
+    private void abandonAsyncCommit(ChangeSet changes, Throwable failure, TxCommitFuture future) {
+        abandonedCommit = changes;
+        committing = false;
+        future.fail(failure);
+    }
+
+    /**
+     * Applies the changes of an asynchronous commit to the wrapped container.
+     */
+    private void applyToInnerContainer(ChangeSet changes) {
+        // Other wrappers of the same container must not commit meanwhile
+        synchronized (innerContainer) {
+            innerCommitTarget.applyChanges(changes);
+        }
+    }
+
+    /**
+     * @return true if an asynchronous commit is in progress, see {@link #commitAsync(Executor, Executor)}
+     */
+    public boolean isCommitting() {
+        return committing;
+    }
+
+    /**
+     * Called before each change of the wrapper. Completes an asynchronous commit whose completion has been rejected
+     * by the completion executor.
+     *
+     * @throws IllegalStateException
+     *         if an asynchronous commit is in progress
+     */
+    void checkNotCommitting() {
+        if (committing) {
+            throw new IllegalStateException("Changes are not allowed while a commit is in progress");
+        }
+        ChangeSet changes = abandonedCommit;
+        if (changes != null) {
+            abandonedCommit = null;
+            applyToInnerContainer(changes);
+            commitCompleted(changes);
+        }
+    }
+
+    /**
+     * Applies the changes to the commit target, after checking the versions of the changed items if versions are
+     * checked.
+     */
+    private void applyChanges(ChangeSet changes) {
+        if (itemVersionProvider == null) {
+            commitTarget.applyChanges(changes);
+            return;
+        }
+        // Other wrappers of the same container must not commit between the check and the changes
+        synchronized (innerContainer) {
+            List<Object> conflictingItemIds = getConflictingItemIds(changes);
+            if (!conflictingItemIds.isEmpty()) {
+                throw new TxConflictException(conflictingItemIds);
+            }
+            commitTarget.applyChanges(changes);
+        }
+    }
+
+    /**
+     * Brings the wrapper up to date after the changes have been applied and ends the transaction.
+     */
+    @SuppressWarnings("deprecation")
+    private void commitCompleted(ChangeSet changes) {
+        for (ChangeSet.InsertedItem insertedItem : changes.getInsertedItems()) {
+            TxItemWrapper txItemWrapper = dirtyById.get(insertedItem.getItemId());
+            Item actualItem = innerContainer.getItem(insertedItem.getItemId());
+            if (actualItem == null) {
+                throw new RuntimeException("Addition of new item "
+                        + txItemWrapper.getInnerItem() + " failed");
+            }
+            txItemWrapper.setInnerItem(actualItem);
+            txItemWrapper.setNew(false);
+            captureVersion(txItemWrapper);
+        }
+        for (ChangeSet.UpdatedItem updatedItem : changes.getUpdatedItems()) {
+            TxItemWrapper txItemWrapper = dirtyById.get(updatedItem.getItemId());
+            txItemWrapper.clearPendingValues();
+            captureVersion(txItemWrapper);
+        }
+        deletedById.clear();
+        dirtyById.clear();
+        recountPendingChanges();
+        savepoints.clear();
+        journal.clear();
+        clearWriteAheadLog();
+        if (!sorted && itemIds.isDetached()) {
+            // The inner container has the same item order now
+            itemIds.attach();
+            if (isFiltered()) {
+                Collection<?> visibleItemIds = getFilteredItemIds();
+                if (doFilterContainer(true)) {
+                    fireItemSetDiff(visibleItemIds);
+                }
+            }
+        }
+        state = TxState.NOT_STARTED;
+        long startNanos = startTiming(TxOperation.TX_LISTENERS);
+        for (TxListener transactionListener : transactionListeners) {
+            transactionListener.transactionCommitted();
+        }
+        operationCompleted(TxOperation.TX_LISTENERS, transactionListeners.size(), startNanos);
+    }
+
+    /**
+     * Returns the pending changes of the current transaction: new items with their values and positions, modified
+     * items with the changed properties only, and removed items. New items are listed in the order of their
+     * positions, so that the previous item of each new item is either an existing one or listed earlier. The cost
+     * depends on the number of changes, not on the size of the container: unless the items have been sorted, the
+     * positions of the new items are known without reading the other item ids.
+     *
+     * @return immutable snapshot of the pending changes, empty if there are none
+     */
+    public ChangeSet getPendingChanges() {
+        List<ChangeSet.InsertedItem> insertedItems = new ArrayList<ChangeSet.InsertedItem>();
+        List<ChangeSet.UpdatedItem> updatedItems = new ArrayList<ChangeSet.UpdatedItem>();
+        int newItemCount = 0;
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            if (txItemWrapper.isNew()) {
+                newItemCount++;
+            } else {
+                Map<Object, Object> pendingValues = new LinkedHashMap<Object, Object>();
+                Map<Object, Object> innerValues = new LinkedHashMap<Object, Object>();
+                txItemWrapper.collectPendingValues(pendingValues, innerValues);
+                if (!pendingValues.isEmpty()) {
+                    updatedItems.add(new ChangeSet.UpdatedItem(txItemWrapper.getItemId(), pendingValues,
+                            innerValues));
+                }
+            }
+        }
+        int[] insertedIndexes = newItemCount == 0 ? new int[0] : itemIds.getInsertedIndexes();
+        if (insertedIndexes != null) {
+            // Only the added ids and the ids right before them are read
+            for (int index : insertedIndexes) {
+                Object itemId = itemIds.get(index);
+                TxItemWrapper txItemWrapper = dirtyById.get(itemId);
+                if (txItemWrapper != null && txItemWrapper.isNew()) {
+                    insertedItems.add(newInsertedItem(txItemWrapper, index > 0 ? itemIds.get(index - 1) : null,
+                            index));
+                }
+            }
+        } else {
+            Object previousItemId = null;
+            int index = 0;
+            for (Object itemId : getAllItemIds()) {
+                if (newItemCount == 0) {
+                    break;
+                }
+                TxItemWrapper txItemWrapper = dirtyById.get(itemId);
+                if (txItemWrapper != null && txItemWrapper.isNew()) {
+                    newItemCount--;
+                    insertedItems.add(newInsertedItem(txItemWrapper, previousItemId, index));
+                }
+                previousItemId = itemId;
+                index++;
+            }
+        }
+        return new ChangeSet(insertedItems, updatedItems, new ArrayList<Object>(deletedById.keySet()));
+    }
+
+    private ChangeSet.InsertedItem newInsertedItem(TxItemWrapper txItemWrapper, Object previousItemId, int index) {
+        Map<Object, Object> values = new LinkedHashMap<Object, Object>();
+        for (Object propId : getContainerPropertyIds()) {
+            values.put(propId, txItemWrapper.getItemProperty(propId).getValue());
+        }
+        return new ChangeSet.InsertedItem(txItemWrapper.getItemId(), previousItemId, index, values);
+    }
+
+    /**
+     * Discards all pending changes. Only the modified items are touched: pending property values are reverted, new
+     * items are dropped and removed items are put back to their positions in the underlying container. An item set
+     * add and remove events are fired only if the item set or the filtering result has changed.
+     */
+    @Override
+    public void rollback() {
+        checkNotCommitting();
+        if (state == TxState.UNCOMMITTED) {
+            long startNanos = startTiming(TxOperation.ROLLBACK);
+            int changeCount = dirtyById.size() + deletedById.size();
+            // Putting removed items back sorts the ids again, which may move any item
+            boolean resort = sorted && !deletedById.isEmpty();
+            Collection<?> visibleItemIds = resort ? new ArrayList<Object>(getVisibleItemIds()) : null;
+            Map<Object, Integer> visiblePositions = resort ? null
+                    : getVisiblePositions(dirtyById.keySet(), deletedById.keySet());
+            int visibleSize = size();
+            boolean itemSetChanged = !deletedById.isEmpty();
+            for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+                if (txItemWrapper.isNew()) {
+                    allItems.remove(txItemWrapper.getItemId());
+                    if (sorted) {
+                        internalRemoveItem(txItemWrapper.getItemId());
+                    }
+                    itemSetChanged = true;
+                } else {
+                    txItemWrapper.rollback();
+                    captureVersion(txItemWrapper);
+                }
+            }
+            dirtyById.clear();
+            restoreDeletedItems();
+            recountPendingChanges();
+            if (itemSetChanged && !sorted) {
+                // Without new and removed items the order is the inner container one again
+                itemIds.attach();
+            }
+            if (doFilterContainer(!getFilters().isEmpty()) || itemSetChanged) {
+                if (resort) {
+                    fireItemSetDiff(visibleItemIds);
+                } else {
+                    fireVisibilityChanges(visiblePositions, visibleSize);
+                }
+            }
+            long listenersStartNanos = startTiming(TxOperation.TX_LISTENERS);
+            for (TxListener transactionListener : transactionListeners) {
+                transactionListener.transactionRolledBack();
+            }
+            operationCompleted(TxOperation.TX_LISTENERS, transactionListeners.size(), listenersStartNanos);
+            operationCompleted(TxOperation.ROLLBACK, changeCount, startNanos);
+        }
+        savepoints.clear();
+        journal.clear();
+        clearWriteAheadLog();
+        state = TxState.NOT_STARTED;
+    }
+
+    /**
+     * Marks the current state of the transaction, starting a transaction if there is none. The savepoint costs memory
+     * in proportion to the changes made after it, except that each later sort copies the order of all item ids into
+     * it, so sorting under a savepoint costs memory in proportion to the size of the container.
+     *
+     * @return new savepoint, valid until the transaction ends, or until it is released or an earlier savepoint is
+     * rolled back to or released
+     */
+    public Savepoint setSavepoint() {
+        checkNotCommitting();
+        startTransaction();
+        Savepoint savepoint = new Savepoint(sorted);
+        savepoints.add(savepoint);
+        return savepoint;
+    }
+
+    /**
+     * Discards the changes made after the given savepoint. The savepoint stays valid, the later ones are released.
+     *
+     * @param savepoint
+     *         active savepoint of this container
+     * @throws IllegalArgumentException
+     *         if the savepoint is not active
+     */
+    public void rollbackToSavepoint(Savepoint savepoint) {
+        checkNotCommitting();
+        int savepointIndex = indexOfSavepoint(savepoint);
+        boolean reordered = false;
+        Set<Object> changedItemIds = new HashSet<Object>();
+        for (Savepoint undone : savepoints.subList(savepointIndex, savepoints.size())) {
+            reordered |= undone.isReordered();
+            undone.collectChangedItemIds(changedItemIds);
+        }
+        // A sort being undone moves the items anyway
+        Map<Object, Integer> visiblePositions = reordered ? null : getVisiblePositions(changedItemIds);
+        int visibleSize = size();
+        boolean itemSetChanged = false;
+        for (int i = savepoints.size() - 1; i >= savepointIndex; i--) {
+            Savepoint undone = savepoints.get(i);
+            itemSetChanged |= undone.hasIdListChanges();
+            undone.undo(allItems, deletedById, dirtyById, itemIds);
+        }
+        savepoints.subList(savepointIndex + 1, savepoints.size()).clear();
+        // The order is the one before any later sort again
+        sorted = savepoint.isSorted();
+        recountPendingChanges();
+        journal.clear();
+        checkpointWriteAheadLog();
+        if (itemSetChanged && !sorted && deletedById.isEmpty() && !hasNewItems()) {
+            itemIds.attach();
+        }
+        if (doFilterContainer(!getFilters().isEmpty()) || itemSetChanged) {
+            if (reordered) {
+                super.fireItemSetChange();
+            } else {
+                fireVisibilityChanges(visiblePositions, visibleSize);
+            }
+        }
+    }
+
+    /**
+     * Releases the given savepoint and the later ones. Their changes stay pending, and are discarded by a rollback to
+     * an earlier savepoint.
+     *
+     * @param savepoint
+     *         active savepoint of this container
+     * @throws IllegalArgumentException
+     *         if the savepoint is not active
+     */
+    public void releaseSavepoint(Savepoint savepoint) {
+        checkNotCommitting();
+        int savepointIndex = indexOfSavepoint(savepoint);
+        if (savepointIndex > 0) {
+            Savepoint previous = savepoints.get(savepointIndex - 1);
+            for (int i = savepointIndex; i < savepoints.size(); i++) {
+                previous.merge(savepoints.get(i));
+            }
+        }
+        savepoints.subList(savepointIndex, savepoints.size()).clear();
+    }
+
+    private int indexOfSavepoint(Savepoint savepoint) {
+        for (int i = 0; i < savepoints.size(); i++) {
+            if (savepoints.get(i) == savepoint) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Savepoint is not active");
+    }
+
+    private boolean hasNewItems() {
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            if (txItemWrapper.isNew()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the latest savepoint, which records the changes, or null if there are no savepoints
+     */
+    private Savepoint latestSavepoint() {
+        return savepoints.isEmpty() ? null : savepoints.get(savepoints.size() - 1);
+    }
+
+    /**
+     * Records the state of an item in the latest savepoint before the item is changed.
+     */
+    private void recordItem(Savepoint savepoint, Object itemId) {
+        if (savepoint != null) {
+            savepoint.recordItem(itemId, allItems, deletedById, dirtyById);
+        }
+    }
+
+    /**
+     * Looks up the visible positions of the items which a change may add to or remove from the visible items, for
+     * {@link #fireVisibilityChanges(Map, int)}. The positions of changed items are found from the changes, see
+     * {@link TxItemIdList}, and in a filtered container with a binary search, so the other item ids are not read.
+     *
+     * @param itemIdSets
+     *         ids of the items
+     * @return visible positions of the items by their ids, -1 for the items which are not visible
+     */
+    private Map<Object, Integer> getVisiblePositions(Collection<?>... itemIdSets) {
+        Map<Object, Integer> visiblePositions = new HashMap<Object, Integer>();
+        for (Collection<?> itemIdSet : itemIdSets) {
+            for (Object itemId : itemIdSet) {
+                if (itemId != null && !visiblePositions.containsKey(itemId)) {
+                    visiblePositions.put(itemId, indexOfId(itemId));
+                }
+            }
+        }
+        return visiblePositions;
+    }
+
+    /**
+     * Fires item remove and add events for the given items which a change has removed from or added to the visible
+     * items, one event per range of consecutive items. The removals are fired first, and the position of each event
+     * refers to the item set after the previous events, so listeners can apply them in order. Only the given items are
+     * looked up, so the change must not have added, removed or moved other items. If the visible item count does not
+     * add up or there are more than {@link #MAX_ITEM_SET_CHANGE_RANGES} ranges, a generic item set change event is
+     * fired instead.
+     *
+     * @param visiblePositionsBefore
+     *         visible positions of the items before the change, see {@link #getVisiblePositions(Collection[])}
+     * @param visibleSizeBefore
+     *         number of visible items before the change
+     */
+    private void fireVisibilityChanges(Map<Object, Integer> visiblePositionsBefore, int visibleSizeBefore) {
+        SortedMap<Integer, Object> removedIds = new TreeMap<Integer, Object>();
+        SortedMap<Integer, Object> addedIds = new TreeMap<Integer, Object>();
+        for (Map.Entry<Object, Integer> idPositionEntry : visiblePositionsBefore.entrySet()) {
+            int positionBefore = idPositionEntry.getValue();
+            int position = indexOfId(idPositionEntry.getKey());
+            if (positionBefore >= 0 && position < 0) {
+                removedIds.put(positionBefore, idPositionEntry.getKey());
+            } else if (positionBefore < 0 && position >= 0) {
+                addedIds.put(position, idPositionEntry.getKey());
+            }
+        }
+        if (visibleSizeBefore - removedIds.size() + addedIds.size() != size()) {
+            // Other items have changed too
+            super.fireItemSetChange();
+            return;
+        }
+        List<ItemRange> ranges = new ArrayList<ItemRange>();
+        addRanges(ranges, removedIds, false);
+        addRanges(ranges, addedIds, true);
+        if (ranges.size() > MAX_ITEM_SET_CHANGE_RANGES) {
+            super.fireItemSetChange();
+            return;
+        }
+        for (ItemRange range : ranges) {
+            if (range.added) {
+                fireItemsAdded(range.position, range.firstItemId, range.count);
+            } else {
+                fireItemsRemoved(range.position, range.firstItemId, range.count);
+            }
+        }
+    }
+
+    /**
+     * Groups items by their positions into ranges of consecutive items. The positions of removed items are shifted
+     * by the removals before them, the positions of added items are their final ones.
+     */
+    private static void addRanges(List<ItemRange> ranges, SortedMap<Integer, Object> idsByPosition, boolean added) {
+        ItemRange range = null;
+        int previousPosition = -1;
+        int count = 0;
+        for (Map.Entry<Integer, Object> positionIdEntry : idsByPosition.entrySet()) {
+            int position = positionIdEntry.getKey();
+            if (range != null && position == previousPosition + 1) {
+                range.count++;
+            } else {
+                range = new ItemRange(added, added ? position : position - count, positionIdEntry.getValue());
+                ranges.add(range);
+            }
+            previousPosition = position;
+            count++;
+        }
+    }
+
+    /**
+     * Fires item remove and add events which turn the given visible item ids into the current ones, one event per
+     * range of consecutive removed or added items. Unlike {@link #fireVisibilityChanges(Map, int)}, this compares all
+     * visible ids, for changes which may affect any item. The position of each event refers to the item set after the
+     * previous events, so listeners can apply them in order. If the order of the remaining items has changed or there
+     * are more than {@link #MAX_ITEM_SET_CHANGE_RANGES} ranges, a generic item set change event is fired instead.
+     *
+     * @param visibleItemIdsBefore
+     *         visible item ids before the change
+     */
+    private void fireItemSetDiff(Collection<?> visibleItemIdsBefore) {
+        List<ItemRange> ranges = diffVisibleItemIds(visibleItemIdsBefore);
+        if (ranges == null) {
+            super.fireItemSetChange();
+            return;
+        }
+        for (ItemRange range : ranges) {
+            if (range.added) {
+                fireItemsAdded(range.position, range.firstItemId, range.count);
+            } else {
+                fireItemsRemoved(range.position, range.firstItemId, range.count);
+            }
+        }
+    }
+
+    /**
+     * Walks the visible item ids before and after a change side by side. An id missing from the current ids has been
+     * removed, and a current id not matching the next former one has been added.
+     *
+     * @return ranges of removed and added items, or null if the items have been reordered or there are too many ranges
+     */
+    private List<ItemRange> diffVisibleItemIds(Collection<?> visibleItemIdsBefore) {
+        List<Object> visibleItemIds = getVisibleItemIds();
+        List<ItemRange> ranges = new ArrayList<ItemRange>();
+        ItemRange range = null;
+        int position = 0;
+        int index = 0;
+        Iterator<?> before = visibleItemIdsBefore.iterator();
+        Object formerItemId = before.hasNext() ? before.next() : null;
+        while (formerItemId != null) {
+            Object itemId = index < visibleItemIds.size() ? visibleItemIds.get(index) : null;
+            if (formerItemId.equals(itemId)) {
+                range = null;
+                position++;
+                index++;
+                formerItemId = before.hasNext() ? before.next() : null;
+            } else if (!visibleItemIds.contains(formerItemId)) {
+                range = extendRange(ranges, range, false, position, formerItemId);
+                formerItemId = before.hasNext() ? before.next() : null;
+            } else if (itemId != null) {
+                range = extendRange(ranges, range, true, position, itemId);
+                position++;
+                index++;
+            } else {
+                // A remaining item has moved
+                return null;
+            }
+            if (ranges.size() > MAX_ITEM_SET_CHANGE_RANGES) {
+                return null;
+            }
+        }
+        for (; index < visibleItemIds.size(); index++) {
+            range = extendRange(ranges, range, true, position++, visibleItemIds.get(index));
+        }
+        return ranges.size() > MAX_ITEM_SET_CHANGE_RANGES ? null : ranges;
+    }
+
+    private static ItemRange extendRange(List<ItemRange> ranges, ItemRange range, boolean added, int position,
+            Object itemId) {
+        if (range != null && range.added == added) {
+            range.count++;
+            return range;
+        }
+        ItemRange newRange = new ItemRange(added, position, itemId);
+        ranges.add(newRange);
+        return newRange;
+    }
+
+    /**
+     * A range of consecutive added or removed items.
+     */
+    private static final class ItemRange {
+        private final boolean added;
+        private final int position;
+        private final Object firstItemId;
+        private int count = 1;
+
+        ItemRange(boolean added, int position, Object firstItemId) {
+            this.added = added;
+            this.position = position;
+            this.firstItemId = firstItemId;
+        }
+    }
+
+    /**
+     * Puts wrappers of removed items back. The ids have to be re-inserted only if the container is sorted, otherwise
+     * the caller attaches the id list back to the inner container.
+     */
+    private void restoreDeletedItems() {
+        if (deletedById.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Object, TxItemWrapper> idItemEntry : deletedById.entrySet()) {
+            TxItemWrapper txItemWrapper = idItemEntry.getValue();
+            if (txItemWrapper != null) {
+                txItemWrapper.rollback();
+                captureVersion(txItemWrapper);
+                allItems.put(idItemEntry.getKey(), txItemWrapper);
+            }
+            if (sorted) {
+                getAllItemIds().add(idItemEntry.getKey());
+            }
+        }
+        deletedById.clear();
+        if (sorted) {
+            doSort();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.Container#getContainerProperty(java.lang.Object,
+     * java.lang.Object)
+     */
+    @Override
+    public Property<?> getContainerProperty(Object itemId, Object propertyId) {
+        Item item = getItem(itemId);
+        return item == null ? null : item.getItemProperty(propertyId);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.Container#getContainerPropertyIds()
+     */
+    @Override
+    public Collection<?> getContainerPropertyIds() {
+        return innerContainer.getContainerPropertyIds();
+    }
+
+    /**
+     * Returns the index of a property id, assigning the next free index to an unknown id.
+     *
+     * @param propertyId
+     *         property id
+     * @return index of the property id
+     */
+    int indexOfPropertyId(Object propertyId) {
+        Integer index = propertyIndexes.get(propertyId);
+        if (index == null) {
+            index = indexedPropertyIds.size();
+            indexedPropertyIds.add(propertyId);
+            propertyIndexes.put(propertyId, index);
+        }
+        return index;
+    }
+
+    Object getPropertyIdByIndex(int index) {
+        return indexedPropertyIds.get(index);
+    }
+
+    /**
+     * @return number of indexed property ids
+     */
+    int getPropertyCount() {
+        return indexedPropertyIds.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.Container#getType(java.lang.Object)
+     */
+    @Override
+    public Class<?> getType(Object propertyId) {
+        return innerContainer.getType(propertyId);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.util.AbstractInMemoryContainer#removeAllItems()
+     */
+    @Override
+    public boolean removeAllItems() {
+        checkNotCommitting();
+        long startNanos = startTiming(TxOperation.REMOVE_ALL_ITEMS);
+        int removedCount = getAllItemIds().size();
+        Savepoint savepoint = latestSavepoint();
+        if (savepoint != null) {
+            List<Object> removedIds = new ArrayList<Object>(getAllItemIds());
+            int[] positions = new int[removedIds.size()];
+            for (int i = 0; i < positions.length; i++) {
+                recordItem(savepoint, removedIds.get(i));
+                positions[i] = i;
+            }
+            savepoint.recordRemoved(removedIds, positions);
+        }
+        int visibleCount = size();
+        Object firstVisibleItemId = firstItemId();
+        for (Object itemId : getAllItemIds()) {
+            TxItemWrapper itemWrapper = getRemovedItemWrapper(itemId);
+            if (itemWrapper == null || !itemWrapper.isNew()) {
+                deletedById.put(itemId, itemWrapper);
+            }
+        }
+        allItems.clear();
+        dirtyById.clear();
+        recountPendingChanges();
+        journal.clear();
+        if (writeAheadLog != null) {
+            writeAheadLog.allItemsRemoved();
+        }
+        internalRemoveAllItems();
+        if (visibleCount > 0) {
+            fireItemsRemoved(0, firstVisibleItemId, visibleCount);
+        }
+        startImplicitTransaction();
+        operationCompleted(TxOperation.REMOVE_ALL_ITEMS, removedCount, startNanos);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.data.util.AbstractInMemoryContainer#removeItem(java.lang.Object
+     * )
+     */
+    @Override
+    public boolean removeItem(Object itemId)
+            throws UnsupportedOperationException {
+        checkNotCommitting();
+        if (!itemIds.contains(itemId)) {
+            return false;
+        }
+        int position = itemIds.indexOf(itemId);
+        int visibleIndex = indexOfId(itemId);
+        Savepoint savepoint = latestSavepoint();
+        if (savepoint != null) {
+            recordItem(savepoint, itemId);
+            savepoint.recordRemoved(Collections.singletonList(itemId), new int[]{position});
+        }
+        TxItemWrapper removed = getRemovedItemWrapper(itemId);
+        countItem(itemId, -1);
+        allItems.remove(itemId);
+        if (removed == null || !removed.isNew()) {
+            deletedById.put(itemId, removed);
+        }
+        boolean dirty = dirtyById.remove(itemId) != null;
+        countItem(itemId, 1);
+        journal.record(new TxJournal.RestoreItemEntry(itemId, removed, position, dirty));
+        if (writeAheadLog != null) {
+            writeAheadLog.itemRemoved(itemId);
+        }
+        internalRemoveItem(itemId);
+        if (visibleIndex >= 0) {
+            fireItemRemoved(visibleIndex, itemId);
+        }
+        startImplicitTransaction();
+        return true;
+    }
+
+    /**
+     * Removes the given items in a single operation. The item lists are updated in one pass, and an item remove event
+     * is fired for each range of consecutive visible items removed.
+     *
+     * @param itemIdsToRemove
+     *         ids of the items to remove, ids which are not in the container are ignored
+     * @return true if at least one item was removed
+     */
+    @SuppressWarnings("deprecation")
+    public boolean removeItems(Collection<?> itemIdsToRemove) {
+        checkNotCommitting();
+        long startNanos = startTiming(TxOperation.REMOVE_ITEMS);
+        Savepoint savepoint = latestSavepoint();
+        Map<Object, Integer> visiblePositions = new HashMap<Object, Integer>();
+        int visibleSize = size();
+        Set<Object> removedIds = new HashSet<Object>();
+        for (Object itemId : itemIdsToRemove) {
+            if (itemId == null || !itemIds.contains(itemId) || !removedIds.add(itemId)) {
+                continue;
+            }
+            visiblePositions.put(itemId, indexOfId(itemId));
+            recordItem(savepoint, itemId);
+            TxItemWrapper removed = getRemovedItemWrapper(itemId);
+            countItem(itemId, -1);
+            allItems.remove(itemId);
+            if (removed == null || !removed.isNew()) {
+                deletedById.put(itemId, removed);
+            }
+            dirtyById.remove(itemId);
+            countItem(itemId, 1);
+            if (writeAheadLog != null) {
+                writeAheadLog.itemRemoved(itemId);
+            }
+        }
+        if (removedIds.isEmpty()) {
+            operationCompleted(TxOperation.REMOVE_ITEMS, 0, startNanos);
+            return false;
+        }
+        if (savepoint != null) {
+            recordRemovedPositions(savepoint, removedIds);
+        }
+        journal.clear();
+        itemIds.removeAll(removedIds);
+        if (isFiltered()) {
+            setFilteredItemIds(TxItemIdList.retainNotIn(getFilteredItemIds(), removedIds));
+        }
+        fireVisibilityChanges(visiblePositions, visibleSize);
+        startImplicitTransaction();
+        operationCompleted(TxOperation.REMOVE_ITEMS, removedIds.size(), startNanos);
+        return true;
+    }
+
+    /**
+     * Returns the wrapper of an item about to be removed, null if the item has not been wrapped. If versions are
+     * checked, the item is wrapped to capture its version.
+     */
+    private TxItemWrapper getRemovedItemWrapper(Object itemId) {
+        return itemVersionProvider != null ? getUnfilteredItem(itemId) : allItems.get(itemId);
+    }
+
+    /**
+     * Records the removal of the given ids with their positions, in a single pass over the item ids.
+     */
+    private void recordRemovedPositions(Savepoint savepoint, Set<Object> removedIds) {
+        List<Object> orderedIds = new ArrayList<Object>(removedIds.size());
+        int[] positions = new int[removedIds.size()];
+        int position = 0;
+        for (Object itemId : itemIds) {
+            if (removedIds.contains(itemId)) {
+                positions[orderedIds.size()] = position;
+                orderedIds.add(itemId);
+            }
+            position++;
+        }
+        savepoint.recordRemoved(orderedIds, positions);
+    }
+
+    /**
+     * Records the pending value of a property in the latest savepoint before the value is changed.
+     *
+     * @param propertyWrapper
+     *         property to be modified
+     */
+    void beforePropertyModified(TxPropertyWrapper<?> propertyWrapper) {
+        // Counted again by itemModified()
+        countItem(propertyWrapper.getOwner().getItemId(), -1);
+        recordPendingValue(propertyWrapper);
+        journal.record(new TxJournal.PendingValueEntry(propertyWrapper));
+    }
+
+    private void recordPendingValue(TxPropertyWrapper<?> propertyWrapper) {
+        Savepoint savepoint = latestSavepoint();
+        if (savepoint != null) {
+            savepoint.recordPendingValue(propertyWrapper);
+        }
+    }
+
+    /**
+     * Registers the item as having pending changes, re-filters it and starts an implicit transaction if needed.
+     *
+     * @param itemWrapper
+     *         modified item
+     * @param propertyId
+     *         id of the modified property
+     * @param newValue
+     *         new pending value of the property
+     */
+    void itemModified(TxItemWrapper itemWrapper, Object propertyId, Object newValue) {
+        Object itemId = itemWrapper.getItemId();
+        if (allItems.get(itemId) != itemWrapper) {
+            // Wrapper of a removed item
+            countItem(itemId, 1);
+            return;
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.valueChanged(itemId, propertyId, newValue);
+        }
+        recordItem(latestSavepoint(), itemId);
+        dirtyById.put(itemId, itemWrapper);
+        countItem(itemId, 1);
+        refilterItem(itemId, itemWrapper);
+        startImplicitTransaction();
+    }
+
+    /**
+     * Re-evaluates the active filters against a single item and adds it to or removes it from the filtered item list.
+     * Nothing is done if there are no filters.
+     *
+     * @param itemId
+     *         id of the modified item
+     * @param itemWrapper
+     *         modified item
+     */
+    private void refilterItem(Object itemId, TxItemWrapper itemWrapper) {
+        if (getFilters().isEmpty() || !isFiltered()) {
+            return;
+        }
+        List<Object> filteredItemIds = getFilteredItemIds();
+        boolean visible = filteredItemIds.contains(itemId);
+        if (passesFilters(itemId) == visible) {
+            return;
+        }
+        if (visible) {
+            int index = searchFilteredItemIds(itemId);
+            filteredItemIds.remove(index);
+            fireItemRemoved(index, itemId);
+        } else {
+            fireItemAdded(insertFilteredItemId(itemId), itemId, itemWrapper);
+        }
+    }
+
+    /**
+     * Inserts an item id to the filtered item list right after the closest visible item preceding it in the
+     * unfiltered list.
+     *
+     * @param itemId
+     *         id of an item which passes the filters
+     * @return index of the item in the filtered list
+     */
+    private int insertFilteredItemId(Object itemId) {
+        int index = -searchFilteredItemIds(itemId) - 1;
+        getFilteredItemIds().add(index, itemId);
+        return index;
+    }
+
+    /**
+     * {@inheritDoc} In a filtered container, the index is found with a binary search instead of a scan of the filtered
+     * ids, see {@link #searchFilteredItemIds(Object)}.
+     */
+    @Override
+    public int indexOfId(Object itemId) {
+        if (!isFiltered()) {
+            return super.indexOfId(itemId);
+        }
+        return getFilteredItemIds().contains(itemId) ? searchFilteredItemIds(itemId) : -1;
+    }
+
+    /**
+     * Finds an item id in the filtered item list, or the index where it belongs. The filtered ids are in the order of
+     * the unfiltered list, so the index is found by a binary search on the positions of the filtered ids in the
+     * unfiltered list. The positions of the filtered ids in the inner container are kept when filtering, so they are
+     * looked up without scanning the ids, unless the ids have been sorted.
+     *
+     * @param itemId
+     *         id of an item in the unfiltered list
+     * @return index of the item in the filtered list if it is there, otherwise <code>(-(insertion point) - 1)</code>
+     */
+    private int searchFilteredItemIds(Object itemId) {
+        List<Object> filteredItemIds = getFilteredItemIds();
+        if (itemIds.isCopied()) {
+            // Each position would be a scan of the sorted ids
+            int index = filteredItemIds.indexOf(itemId);
+            if (index >= 0) {
+                return index;
+            }
+            List<Object> allItemIds = getAllItemIds();
+            for (int i = allItemIds.indexOf(itemId) - 1; i >= 0; i--) {
+                Object previousItemId = allItemIds.get(i);
+                if (filteredItemIds.contains(previousItemId)) {
+                    return -filteredItemIds.indexOf(previousItemId) - 2;
+                }
+            }
+            return -1;
+        }
+        int position = itemIds.indexOf(itemId);
+        int low = 0;
+        int high = filteredItemIds.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middlePosition = itemIds.indexOf(filteredItemIds.get(middle));
+            if (middlePosition < position) {
+                low = middle + 1;
+            } else if (middlePosition > position) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    /**
+     * Restores a pending value of a property for undo or redo and updates the state of the item accordingly.
+     */
+    void restorePendingValue(TxPropertyWrapper<?> propertyWrapper, boolean pending, Object value) {
+        TxItemWrapper itemWrapper = propertyWrapper.getOwner();
+        Object itemId = itemWrapper.getItemId();
+        countItem(itemId, -1);
+        recordPendingValue(propertyWrapper);
+        propertyWrapper.restorePendingValue(pending, value);
+        if (allItems.get(itemId) != itemWrapper) {
+            // Wrapper of a removed item
+            countItem(itemId, 1);
+            return;
+        }
+        if (writeAheadLog != null) {
+            if (pending) {
+                writeAheadLog.valueChanged(itemId, propertyWrapper.getPropertyId(), value);
+            } else {
+                writeAheadLog.valueCleared(itemId, propertyWrapper.getPropertyId());
+            }
+        }
+        recordItem(latestSavepoint(), itemId);
+        if (itemWrapper.isNew() || itemWrapper.hasPendingValues()) {
+            dirtyById.put(itemId, itemWrapper);
+        } else {
+            dirtyById.remove(itemId);
+        }
+        countItem(itemId, 1);
+        refilterItem(itemId, itemWrapper);
+    }
+
+    /**
+     * Removes an item for undo or redo, firing an item remove event if the item was visible.
+     *
+     * @param itemId
+     *         id of the item to remove
+     * @return journal entry putting the item back, or null if there is no such item
+     */
+    @SuppressWarnings("deprecation")
+    TxJournal.Entry journalRemoveItem(Object itemId) {
+        int position = itemIds.indexOf(itemId);
+        if (position < 0) {
+            return null;
+        }
+        int visibleIndex = indexOfId(itemId);
+        Savepoint savepoint = latestSavepoint();
+        if (savepoint != null) {
+            recordItem(savepoint, itemId);
+            savepoint.recordRemoved(Collections.singletonList(itemId), new int[]{position});
+        }
+        TxItemWrapper removed = getRemovedItemWrapper(itemId);
+        countItem(itemId, -1);
+        allItems.remove(itemId);
+        if (removed == null || !removed.isNew()) {
+            deletedById.put(itemId, removed);
+        }
+        boolean dirty = dirtyById.remove(itemId) != null;
+        countItem(itemId, 1);
+        if (writeAheadLog != null) {
+            writeAheadLog.itemRemoved(itemId);
+        }
+        itemIds.remove(position);
+        if (isFiltered() && visibleIndex >= 0) {
+            getFilteredItemIds().remove(visibleIndex);
+        }
+        if (visibleIndex >= 0) {
+            fireItemRemoved(visibleIndex, itemId);
+        }
+        return new TxJournal.RestoreItemEntry(itemId, removed, position, dirty);
+    }
+
+    /**
+     * Puts a removed item back for undo or redo, firing an item add event if the item is visible.
+     *
+     * @param itemId
+     *         id of the item
+     * @param itemWrapper
+     *         wrapper of the item, null if the item had never been accessed
+     * @param position
+     *         former position of the item in the unfiltered list
+     * @param dirty
+     *         true if the item had pending changes
+     * @return journal entry removing the item again, or null if the item is in the container already
+     */
+    TxJournal.Entry journalRestoreItem(Object itemId, TxItemWrapper itemWrapper, int position, boolean dirty) {
+        if (!insertItem(itemId, itemWrapper, position, dirty)) {
+            return null;
+        }
+        if (writeAheadLog != null) {
+            int restoredPosition = itemIds.indexOf(itemId);
+            Object previousItemId = restoredPosition > 0 ? itemIds.get(restoredPosition - 1) : null;
+            if (itemWrapper != null && itemWrapper.isNew()) {
+                Map<Object, Object> values = new LinkedHashMap<Object, Object>();
+                for (Object propertyId : getContainerPropertyIds()) {
+                    values.put(propertyId, itemWrapper.getItemProperty(propertyId).getValue());
+                }
+                writeAheadLog.itemAdded(itemId, previousItemId, values);
+            } else {
+                writeAheadLog.itemRestored(itemId, previousItemId);
+            }
+        }
+        return new TxJournal.RemoveItemEntry(itemId);
+    }
+
+    /**
+     * Inserts an item at the given position of the unfiltered list, firing an item add event if the item is visible.
+     *
+     * @return false if the item is in the container already
+     */
+    private boolean insertItem(Object itemId, TxItemWrapper itemWrapper, int position, boolean dirty) {
+        if (itemIds.contains(itemId)) {
+            return false;
+        }
+        Savepoint savepoint = latestSavepoint();
+        recordItem(savepoint, itemId);
+        countItem(itemId, -1);
+        deletedById.remove(itemId);
+        if (itemWrapper != null) {
+            allItems.put(itemId, itemWrapper);
+        }
+        if (dirty) {
+            dirtyById.put(itemId, itemWrapper);
+        }
+        countItem(itemId, 1);
+        position = Math.min(position, itemIds.size());
+        itemIds.add(position, itemId);
+        if (savepoint != null) {
+            savepoint.recordAdded(Collections.singletonList(itemId));
+        }
+        if (!isFiltered()) {
+            fireItemAdded(position, itemId, getUnfilteredItem(itemId));
+        } else if (passesFilters(itemId)) {
+            fireItemAdded(insertFilteredItemId(itemId), itemId, getUnfilteredItem(itemId));
+        }
+        return true;
+    }
+
+    private void fireTransactionStarted(boolean implicit) {
+        long startNanos = startTiming(TxOperation.TX_LISTENERS);
+        for (TxListener transactionListener : transactionListeners) {
+            transactionListener.transactionStarted(implicit);
+        }
+        operationCompleted(TxOperation.TX_LISTENERS, transactionListeners.size(), startNanos);
+    }
+
+    private void startImplicitTransaction() {
+        if (state == TxState.NOT_STARTED) {
+            fireTransactionStarted(true);
+        }
+        state = TxState.UNCOMMITTED;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItem()
+     */
+    @Override
+    public Object addItem() throws UnsupportedOperationException {
+        Object newItemId = itemGenerator.createNewItemId();
+        addItem(newItemId);
+        return newItemId;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.data.util.AbstractInMemoryContainer#addItem(java.lang.Object)
+     */
+    @Override
+    public Item addItem(Object itemId) throws UnsupportedOperationException {
+        return addItemAt(size(), itemId);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItemAt(int)
+     */
+    @Override
+    public Object addItemAt(int index) throws UnsupportedOperationException {
+        Object newItemId = itemGenerator.createNewItemId();
+        addItemAt(index, newItemId);
+        return newItemId;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItemAt(int,
+     * java.lang.Object)
+     */
+    @Override
+    public Item addItemAt(int index, Object newItemId)
+            throws UnsupportedOperationException {
+        checkNotCommitting();
+        if (itemGenerator == null) {
+            throw new UnsupportedOperationException();
+        }
+        if (newItemId == null) {
+            return null;
+        }
+        if (index < 0) {
+            return null;
+        }
+        if (itemIds.contains(newItemId)
+                || deletedById.containsKey(newItemId)) {
+            return null;
+        }
+        Item newItem = itemGenerator.createNewItem(newItemId);
+        TxItemWrapper newItemWrapper = new TxItemWrapper(this, newItem,
+                newItemId, true);
+        Savepoint savepoint = latestSavepoint();
+        recordItem(savepoint, newItemId);
+        countItem(newItemId, -1);
+        allItems.put(newItemId, newItemWrapper);
+        if (internalAddItemAt(index, newItemId, newItemWrapper, true) == null) {
+            allItems.remove(newItemId);
+            countItem(newItemId, 1);
+            return null;
+        }
+        if (savepoint != null) {
+            savepoint.recordAdded(Collections.singletonList(newItemId));
+        }
+        journal.record(new TxJournal.RemoveItemEntry(newItemId));
+        if (writeAheadLog != null) {
+            int position = itemIds.indexOf(newItemId);
+            writeAheadLog.itemAdded(newItemId, position > 0 ? itemIds.get(position - 1) : null);
+        }
+        dirtyById.put(newItemId, newItemWrapper);
+        countItem(newItemId, 1);
+        startImplicitTransaction();
+        return newItemWrapper;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.data.util.AbstractInMemoryContainer#addItemAfter(java.lang
+     * .Object)
+     */
+    @Override
+    public Object addItemAfter(Object previousItemId)
+            throws UnsupportedOperationException {
+        Object newItemId = itemGenerator.createNewItemId();
+        addItemAfter(previousItemId, newItemId);
+        return newItemId;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.data.util.AbstractInMemoryContainer#addItemAfter(java.lang
+     * .Object, java.lang.Object)
+     */
+    @Override
+    public Item addItemAfter(Object previousItemId, Object newItemId)
+            throws UnsupportedOperationException {
+        return addItemAt(indexOfId(previousItemId) + 1, newItemId);
+    }
+
+    /**
+     * Adds new items with the given ids at the given index, generating the items with the {@link ItemGenerator}. The
+     * item lists are updated once and a single item add event is fired for the whole range.
+     *
+     * @param index
+     *         index of the first new item in the (filtered) container
+     * @param newItemIds
+     *         ids of the new items; null ids and ids which are already in the container are skipped
+     * @return number of added items
+     * @throws UnsupportedOperationException
+     *         if the container has no item generator
+     */
+    @SuppressWarnings("deprecation")
+    public int addItems(int index, Collection<?> newItemIds)
+            throws UnsupportedOperationException {
+        checkNotCommitting();
+        if (itemGenerator == null) {
+            throw new UnsupportedOperationException();
+        }
+        if (index < 0 || index > size()) {
+            return 0;
+        }
+        long startNanos = startTiming(TxOperation.ADD_ITEMS);
+        Savepoint savepoint = latestSavepoint();
+        List<Object> addedIds = new ArrayList<Object>(newItemIds.size());
+        for (Object newItemId : newItemIds) {
+            if (newItemId == null || itemIds.contains(newItemId)
+                    || deletedById.containsKey(newItemId)
+                    || allItems.containsKey(newItemId)) {
+                continue;
+            }
+            Item newItem = itemGenerator.createNewItem(newItemId);
+            TxItemWrapper newItemWrapper = new TxItemWrapper(this, newItem,
+                    newItemId, true);
+            recordItem(savepoint, newItemId);
+            countItem(newItemId, -1);
+            allItems.put(newItemId, newItemWrapper);
+            dirtyById.put(newItemId, newItemWrapper);
+            countItem(newItemId, 1);
+            addedIds.add(newItemId);
+        }
+        if (addedIds.isEmpty()) {
+            operationCompleted(TxOperation.ADD_ITEMS, 0, startNanos);
+            return 0;
+        }
+        // Same placement as internalAddItemAt(): right after the previous visible item
+        int position = index == 0 ? 0 : itemIds.indexOf(getIdByIndex(index - 1)) + 1;
+        List<Object> visibleIds = addedIds;
+        if (isFiltered()) {
+            visibleIds = new ArrayList<Object>(addedIds.size());
+            for (Object addedId : addedIds) {
+                if (passesFilters(addedId)) {
+                    visibleIds.add(addedId);
+                }
+            }
+            if (!visibleIds.isEmpty()) {
+                setFilteredItemIds(TxItemIdList.insertAll(getFilteredItemIds(), index, visibleIds));
+            }
+        }
+        if (writeAheadLog != null) {
+            Object previousItemId = position > 0 ? itemIds.get(position - 1) : null;
+            for (Object addedId : addedIds) {
+                writeAheadLog.itemAdded(addedId, previousItemId);
+                previousItemId = addedId;
+            }
+        }
+        itemIds.addAll(position, addedIds);
+        if (savepoint != null) {
+            savepoint.recordAdded(addedIds);
+        }
+        journal.clear();
+        if (!visibleIds.isEmpty()) {
+            fireItemsAdded(index, visibleIds.get(0), visibleIds.size());
+        }
+        startImplicitTransaction();
+        operationCompleted(TxOperation.ADD_ITEMS, addedIds.size(), startNanos);
+        return addedIds.size();
+    }
+
+    /**
+     * Adds new items with the given ids after the given item, see {@link #addItems(int, Collection)}.
+     *
+     * @param previousItemId
+     *         id of the visible item after which the new items are added, null to add them first
+     * @param newItemIds
+     *         ids of the new items
+     * @return number of added items
+     * @throws UnsupportedOperationException
+     *         if the container has no item generator
+     */
+    public int addItemsAfter(Object previousItemId, Collection<?> newItemIds)
+            throws UnsupportedOperationException {
+        return addItems(indexOfId(previousItemId) + 1, newItemIds);
+    }
+
+    /**
+     * Reverts the latest single property edit, addItemAt() or removeItem() of the transaction. Only the affected item
+     * is updated, with a value change event or a single item add or remove event. Bulk operations and rollbacks to a
+     * savepoint clear the journal, as do commit(), rollback() and reset().
+     *
+     * @return true if an edit was reverted
+     */
+    public boolean undo() {
+        checkNotCommitting();
+        return journal.undo(this);
+    }
+
+    /**
+     * Applies again the latest edit reverted with {@link #undo()}. Any new edit drops the edits to redo.
+     *
+     * @return true if an edit was applied
+     */
+    public boolean redo() {
+        checkNotCommitting();
+        return journal.redo(this);
+    }
+
+    /**
+     * @return true if there is an edit to revert with {@link #undo()}
+     */
+    public boolean canUndo() {
+        return journal.canUndo();
+    }
+
+    /**
+     * @return true if there is an edit to apply with {@link #redo()}
+     */
+    public boolean canRedo() {
+        return journal.canRedo();
+    }
+
+    /**
+     * @return maximum number of edits kept for undo
+     */
+    public int getJournalSize() {
+        return journal.getMaxSize();
+    }
+
+    /**
+     * Sets the maximum number of edits kept for undo. The oldest edits are dropped when the journal is full.
+     *
+     * @param journalSize
+     *         maximum number of edits, 0 disables the journal
+     */
+    public void setJournalSize(int journalSize) {
+        journal.setMaxSize(journalSize);
+    }
+
+    /**
+     * @return the log recording the pending changes, or null if there is none
+     */
+    public TxWriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Sets the log recording the pending changes. The log is cleared and the current pending changes are written to
+     * it. From then on property edits, item additions and removals are appended to it, and it is cleared when the
+     * transaction is committed, rolled back or reset. The log is not serialized with the wrapper, so it has to be set
+     * again after the session has moved to another node. The wrapper does not close the log.
+     *
+     * @param writeAheadLog
+     *         log of the pending changes, or null to not log them
+     */
+    public void setWriteAheadLog(TxWriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        checkpointWriteAheadLog();
+    }
+
+    /**
+     * Rebuilds the pending changes recorded in a log, typically one left behind by a session on a node which has
+     * died, and continues logging to it. New items are generated with the {@link ItemGenerator} and inserted after
+     * the same items as before, edits of items which no longer exist in the wrapped container are skipped. Events
+     * are fired as for the original changes.
+     *
+     * @param writeAheadLog
+     *         log to recover the changes from
+     * @throws IllegalStateException
+     *         if there are pending changes or a commit is in progress
+     */
+    public void recover(TxWriteAheadLog writeAheadLog) {
+        checkNotCommitting();
+        if (state == TxState.UNCOMMITTED) {
+            throw new IllegalStateException("Changes cannot be recovered while other changes are pending");
+        }
+        this.writeAheadLog = null;
+        try {
+            writeAheadLog.replay(new TxWriteAheadLog.Operations() {
+                @Override
+                public void addItem(Object itemId, Object previousItemId) {
+                    recoverAddedItem(itemId, previousItemId);
+                }
+
+                @Override
+                public void removeItem(Object itemId) {
+                    TransactionalContainerWrapper.this.removeItem(itemId);
+                }
+
+                @Override
+                public void restoreItem(Object itemId, Object previousItemId) {
+                    recoverRestoredItem(itemId, previousItemId);
+                }
+
+                @Override
+                public void removeAllItems() {
+                    TransactionalContainerWrapper.this.removeAllItems();
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void setValue(Object itemId, Object propertyId, Object value) {
+                    TxItemWrapper txItemWrapper = getUnfilteredItem(itemId);
+                    Property<Object> property = txItemWrapper == null ? null
+                            : (Property<Object>) txItemWrapper.getItemProperty(propertyId);
+                    if (property != null && !property.isReadOnly()) {
+                        property.setValue(value);
+                    }
+                }
+
+                @Override
+                public void clearValue(Object itemId, Object propertyId) {
+                    TxItemWrapper txItemWrapper = getUnfilteredItem(itemId);
+                    Property<?> property = txItemWrapper == null ? null : txItemWrapper.getItemProperty(propertyId);
+                    if (property != null) {
+                        restorePendingValue((TxPropertyWrapper<?>) property, false, null);
+                    }
+                }
+            });
+        } finally {
+            this.writeAheadLog = writeAheadLog;
+        }
+        journal.clear();
+    }
+
+    /**
+     * Adds a new item right after the given item of the unfiltered list, or last if the item no longer exists.
+     */
+    private void recoverAddedItem(Object itemId, Object previousItemId) {
+        if (itemGenerator == null) {
+            throw new UnsupportedOperationException();
+        }
+        if (itemIds.contains(itemId) || deletedById.containsKey(itemId)) {
+            return;
+        }
+        insertItem(itemId, new TxItemWrapper(this, itemGenerator.createNewItem(itemId), itemId, true),
+                recoveredPosition(previousItemId), true);
+        startImplicitTransaction();
+    }
+
+    /**
+     * Puts a removed item back right after the given item of the unfiltered list, or last if the item no longer
+     * exists.
+     */
+    private void recoverRestoredItem(Object itemId, Object previousItemId) {
+        if (!deletedById.containsKey(itemId)) {
+            return;
+        }
+        TxItemWrapper itemWrapper = deletedById.get(itemId);
+        insertItem(itemId, itemWrapper, recoveredPosition(previousItemId),
+                itemWrapper != null && itemWrapper.hasPendingValues());
+    }
+
+    private int recoveredPosition(Object previousItemId) {
+        if (previousItemId == null) {
+            return 0;
+        }
+        int position = itemIds.indexOf(previousItemId);
+        return position < 0 ? itemIds.size() : position + 1;
+    }
+
+    private void clearWriteAheadLog() {
+        if (writeAheadLog != null) {
+            writeAheadLog.clear();
+        }
+    }
+
+    /**
+     * Writes all pending changes to the log, after changes which are not logged one by one.
+     */
+    private void checkpointWriteAheadLog() {
+        if (writeAheadLog != null) {
+            writeAheadLog.checkpoint(getPendingChanges());
+        }
+    }
+
+    /**
+     * Suspends the item set change and property value change events until {@link #resumeNotifications()} is called.
+     * Calls may be nested, the events are fired when the outermost suspension is resumed. Transaction events of
+     * {@link TxListener}s are not affected.
+     */
+    public void suspendNotifications() {
+        notificationSuspensions++;
+    }
+
+    /**
+     * Resumes the notifications suspended with {@link #suspendNotifications()}. When the outermost suspension is
+     * resumed, a single generic item set change event is fired if the item set or the filtering result changed in the
+     * meantime, followed by one value change event for each property whose value changed.
+     *
+     * @throws IllegalStateException
+     *         if the notifications are not suspended
+     */
+    public void resumeNotifications() {
+        if (notificationSuspensions == 0) {
+            throw new IllegalStateException("Notifications are not suspended");
+        }
+        if (--notificationSuspensions > 0) {
+            return;
+        }
+        if (itemSetChangeSuspended) {
+            itemSetChangeSuspended = false;
+            super.fireItemSetChange();
+        }
+        List<TxPropertyWrapper<?>> changedProperties = new ArrayList<TxPropertyWrapper<?>>(suspendedValueChanges);
+        suspendedValueChanges.clear();
+        for (TxPropertyWrapper<?> propertyWrapper : changedProperties) {
+            propertyWrapper.fireValueChange();
+        }
+    }
+
+    /**
+     * @return true if the notifications are suspended with {@link #suspendNotifications()}
+     */
+    public boolean isNotificationsSuspended() {
+        return notificationSuspensions > 0;
+    }
+
+    /**
+     * Holds back a value change event of a property if the notifications are suspended.
+     *
+     * @param propertyWrapper
+     *         property whose value has changed
+     * @return true if the event is held back and should not be fired now
+     */
+    boolean suspendValueChange(TxPropertyWrapper<?> propertyWrapper) {
+        if (notificationSuspensions == 0) {
+            return false;
+        }
+        suspendedValueChanges.add(propertyWrapper);
+        return true;
+    }
+
+    /**
+     * Holds back the event if the notifications are suspended, see {@link #suspendNotifications()}.
      */
-    public TransactionalContainerWrapper(Indexed innerContainer,
-            ItemGenerator itemGenerator) {
-        this.innerContainer = innerContainer;
-        this.itemGenerator = itemGenerator;
+    @Override
+    protected void fireItemSetChange(ItemSetChangeEvent event) {
+        if (notificationSuspensions > 0) {
+            itemSetChangeSuspended = true;
+        } else {
+            super.fireItemSetChange(event);
+        }
+    }
 
-        reset();
+    /**
+     * @return the target the changes are applied to on commit
+     */
+    public CommitTarget getCommitTarget() {
+        return commitTarget;
     }
 
     /**
-     * Resets the container state. Discards all changes and re-syncs with the underlying container.
+     * Sets the target the changes are applied to on commit. By default it is the wrapped container itself if it
+     * implements {@link CommitTarget}, otherwise an {@link IndexedCommitTarget} for the wrapped container.
+     *
+     * @param commitTarget
+     *         Commit target to use, not null.
      */
-    public void reset() {
-        allItems.clear();
-        for (Object id : innerContainer.getItemIds()) {
-            Item item = innerContainer.getItem(id);
-            allItems.put(id, new TxItemWrapper(this, item, id, false));
+    public void setCommitTarget(CommitTarget commitTarget) {
+        if (commitTarget == null) {
+            throw new IllegalArgumentException("Commit target cannot be null");
         }
-        getAllItemIds().clear();
-        getAllItemIds().addAll(allItems.keySet());
-        state = TxState.NOT_STARTED;
-        filterAll();
+        this.commitTarget = commitTarget;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see
-     * com.vaadin.data.util.AbstractInMemoryContainer#getUnfilteredItem(java
-     * .lang.Object)
+    /**
+     * @return the provider of the item versions checked on commit, or null if versions are not checked
      */
-    @Override
-    protected TxItemWrapper getUnfilteredItem(Object itemId) {
-        return allItems.get(itemId);
+    public ItemVersionProvider getItemVersionProvider() {
+        return itemVersionProvider;
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Sets the provider of item versions for optimistic concurrency control. The version of an item is captured when
+     * the item is wrapped, i.e. first accessed or removed, and again when its changes are committed or rolled back.
+     * On commit, the captured versions of the modified and removed items are compared with their current versions
+     * while holding the lock of the wrapped container, and commit() throws a {@link TxConflictException} listing the
+     * items changed or removed by another transaction. Other wrappers of the same container should check the
+     * versions as well.
+     * <p>
+     * The versions of the items wrapped so far are captured when the provider is set. Versions are not checked by
+     * {@link #commitAsync(Executor, Executor)}.
+     * </p>
      *
-     * @see com.vaadin.tx.poc.container.TxAware#startTransaction()
+     * @param itemVersionProvider
+     *         provider of item versions, or null to not check the versions
+     * @throws IllegalStateException
+     *         if an asynchronous commit is in progress
      */
-    @Override
-    public void startTransaction() {
-        if (state == TxState.NOT_STARTED) {
-            for (TxItemWrapper txItemWrapper : allItems.values()) {
-                txItemWrapper.startTransaction();
-            }
-            for (TxListener transactionListener : transactionListeners) {
-                transactionListener.transactionStarted(false);
+    public void setItemVersionProvider(ItemVersionProvider itemVersionProvider) {
+        checkNotCommitting();
+        this.itemVersionProvider = itemVersionProvider;
+        restoredVersions = null;
+        for (TxItemWrapper txItemWrapper : allItems.values()) {
+            captureVersion(txItemWrapper);
+        }
+        for (TxItemWrapper txItemWrapper : deletedById.values()) {
+            if (txItemWrapper != null) {
+                captureVersion(txItemWrapper);
             }
-            state = TxState.STARTED;
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Returns the ids of the items with pending changes which have been changed or removed by another transaction
+     * since they were read, i.e. the items a commit would fail for.
      *
-     * @see com.vaadin.tx.poc.container.TxAware#commit()
+     * @return ids of the conflicting items, empty if there are none or versions are not checked
      */
-    @Override
-    public void commit() {
-        if (state != TxState.NOT_STARTED) {
-            for (Object deletedId : deletedById.keySet()) {
-                innerContainer.removeItem(deletedId);
-            }
-            Object previousItemId = null;
-            for (Object itemId : getAllItemIds()) {
-                TxItemWrapper txItemWrapper = allItems.get(itemId);
-                if (txItemWrapper.isNew()) {
-                    Item actualItem = innerContainer.addItemAfter(
-                            previousItemId, txItemWrapper.getItemId());
-                    if (actualItem == null) {
-                        throw new RuntimeException("Addition of new item "
-                                + txItemWrapper.getInnerItem() + " failed");
-                    }
+    public List<Object> getConflictingItemIds() {
+        if (itemVersionProvider == null) {
+            return new ArrayList<Object>();
+        }
+        return getConflictingItemIds(getPendingChanges());
+    }
 
-                    for (Object propId : actualItem.getItemPropertyIds()) {
-                        @SuppressWarnings("unchecked")
-                        Property<Object> itemProperty = actualItem
-                                .getItemProperty(propId);
-                        if (!itemProperty.isReadOnly()) {
-                            Object newValue = txItemWrapper.getItemProperty(
-                                    propId).getValue();
-                            itemProperty.setValue(newValue);
-                        }
-                    }
-                    txItemWrapper.setInnerItem(actualItem);
-                    txItemWrapper.setNew(false);
-                } else {
-                    txItemWrapper.commit();
-                }
-                previousItemId = itemId;
+    private List<Object> getConflictingItemIds(ChangeSet changes) {
+        List<Object> conflictingItemIds = new ArrayList<Object>();
+        for (ChangeSet.UpdatedItem updatedItem : changes.getUpdatedItems()) {
+            if (isStale(dirtyById.get(updatedItem.getItemId()))) {
+                conflictingItemIds.add(updatedItem.getItemId());
             }
-            state = TxState.NOT_STARTED;
-            for (TxListener transactionListener : transactionListeners) {
-                transactionListener.transactionCommitted();
+        }
+        for (Object deletedId : changes.getDeletedItemIds()) {
+            if (isStale(deletedById.get(deletedId))) {
+                conflictingItemIds.add(deletedId);
             }
         }
+        return conflictingItemIds;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see com.vaadin.tx.poc.container.TxAware#rollback()
+    /**
+     * @return true if the item has been removed from the wrapped container or its version differs from the captured
+     * one; false also if the item has never been wrapped, so no version has been captured
      */
-    @Override
-    public void rollback() {
-        if (state == TxState.UNCOMMITTED) {
-            reset();
-            super.fireItemSetChange();
-            for (TxListener transactionListener : transactionListeners) {
-                transactionListener.transactionRolledBack();
-            }
+    private boolean isStale(TxItemWrapper txItemWrapper) {
+        if (txItemWrapper == null) {
+            return false;
         }
-        state = TxState.NOT_STARTED;
+        Item currentItem = innerContainer.getItem(txItemWrapper.getItemId());
+        return currentItem == null || !SharedUtil.equals(txItemWrapper.getVersion(),
+                itemVersionProvider.getVersion(txItemWrapper.getItemId(), currentItem));
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Takes the current versions of the given items, so that the next commit overwrites the changes other
+     * transactions have made to them. Typically called for the items of a {@link TxConflictException} after the
+     * user has chosen to keep the own changes.
      *
-     * @see com.vaadin.data.Container#getContainerProperty(java.lang.Object,
-     * java.lang.Object)
+     * @param itemIds
+     *         ids of the items, ids which are not in the container or have been removed from the wrapped container
+     *         are ignored
      */
-    @Override
-    public Property<?> getContainerProperty(Object itemId, Object propertyId) {
-        Item item = getItem(itemId);
-        return item == null ? null : item.getItemProperty(propertyId);
+    public void acceptCurrentVersions(Collection<?> itemIds) {
+        for (Object itemId : itemIds) {
+            TxItemWrapper txItemWrapper = allItems.get(itemId);
+            if (txItemWrapper == null) {
+                txItemWrapper = deletedById.get(itemId);
+            }
+            if (txItemWrapper != null && innerContainer.containsId(itemId)) {
+                captureVersion(txItemWrapper);
+            }
+        }
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see com.vaadin.data.Container#getContainerPropertyIds()
+    /**
+     * Captures the current version of the inner item of an existing item, if versions are checked.
      */
-    @Override
-    public Collection<?> getContainerPropertyIds() {
-        return innerContainer.getContainerPropertyIds();
+    private void captureVersion(TxItemWrapper txItemWrapper) {
+        if (itemVersionProvider != null && !txItemWrapper.isNew()) {
+            txItemWrapper.setVersion(itemVersionProvider.getVersion(txItemWrapper.getItemId(),
+                    txItemWrapper.getInnerItem()));
+        } else {
+            txItemWrapper.setVersion(null);
+        }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Adds a listener of the operation durations. Metrics listeners are not serialized with the wrapper.
      *
-     * @see com.vaadin.data.Container#getType(java.lang.Object)
+     * @param listener
+     *         listener to add
      */
-    @Override
-    public Class<?> getType(Object propertyId) {
-        return innerContainer.getType(propertyId);
+    public void addMetricsListener(TxMetricsListener listener) {
+        if (metricsListeners == null) {
+            metricsListeners = new ArrayList<TxMetricsListener>();
+            pendingCounts = new TxPendingCounts();
+            recountPendingChanges();
+        }
+        metricsListeners.add(listener);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Removes a listener of the operation durations. Nothing is measured once the last one is removed.
      *
-     * @see com.vaadin.data.util.AbstractInMemoryContainer#removeAllItems()
+     * @param listener
+     *         listener to remove
      */
-    @Override
-    public boolean removeAllItems() {
-        for (Map.Entry<Object, TxItemWrapper> idItemEntry : allItems.entrySet()) {
-            TxItemWrapper itemWrapper = idItemEntry.getValue();
-            if (!itemWrapper.isNew()) {
-                deletedById.put(idItemEntry.getKey(), itemWrapper);
-            }
+    public void removeMetricsListener(TxMetricsListener listener) {
+        if (metricsListeners != null && metricsListeners.remove(listener) && metricsListeners.isEmpty()) {
+            metricsListeners = null;
+            pendingCounts = null;
         }
-        internalRemoveAllItems();
-        super.fireItemSetChange();
-        startImplicitTransaction();
-        return true;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see
-     * com.vaadin.data.util.AbstractInMemoryContainer#removeItem(java.lang.Object
-     * )
+    /**
+     * @return gauges of the pending changes, which may be read by any thread, or null if there are no metrics
+     * listeners
      */
-    @Override
-    public boolean removeItem(Object itemId)
-            throws UnsupportedOperationException {
-        TxItemWrapper removed = allItems.remove(itemId);
-        if (removed == null) {
-            return false;
-        }
-        if (!removed.isNew()) {
-            deletedById.put(removed.getItemId(), removed);
-        }
-        internalRemoveItem(itemId);
-        super.fireItemSetChange();
-        startImplicitTransaction();
-        return true;
+    TxPendingCounts getPendingCounts() {
+        return pendingCounts;
     }
 
-    private void startImplicitTransaction() {
-        filterAll();
-        if (state == TxState.NOT_STARTED) {
-            for (TxListener transactionListener : transactionListeners) {
-                transactionListener.transactionStarted(true);
-            }
+    /**
+     * Updates the gauges of the pending changes with the contribution of an item. Called with a negative sign before
+     * the item changes and with a positive one after it.
+     */
+    private void countItem(Object itemId, int sign) {
+        TxPendingCounts counts = pendingCounts;
+        if (counts != null) {
+            counts.add(dirtyById.get(itemId), deletedById.containsKey(itemId), allItems.containsKey(itemId), sign);
         }
-        state = TxState.UNCOMMITTED;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItem()
+    /**
+     * Replaces the gauges of the pending changes after a bulk change.
      */
-    @Override
-    public Object addItem() throws UnsupportedOperationException {
-        Object newItemId = itemGenerator.createNewItemId();
-        addItem(newItemId);
-        return newItemId;
+    private void recountPendingChanges() {
+        if (pendingCounts == null) {
+            return;
+        }
+        TxPendingCounts counts = new TxPendingCounts();
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            counts.add(txItemWrapper, false, false, 1);
+        }
+        counts.deletes = deletedById.size();
+        counts.wrappedItems = allItems.size();
+        pendingCounts = counts;
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Notifies the metrics listeners of the start of an operation.
      *
-     * @see
-     * com.vaadin.data.util.AbstractInMemoryContainer#addItem(java.lang.Object)
+     * @return start time of the operation in nanoseconds, or 0 if there are no metrics listeners
      */
-    @Override
-    public Item addItem(Object itemId) throws UnsupportedOperationException {
-        return addItemAt(size(), itemId);
+    private long startTiming(TxOperation operation) {
+        if (metricsListeners == null) {
+            return 0;
+        }
+        for (TxMetricsListener metricsListener : metricsListeners) {
+            metricsListener.operationStarted(this, operation);
+        }
+        return System.nanoTime();
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItemAt(int)
+    /**
+     * Reports the duration of an operation to the metrics listeners. Nothing is reported if the operation was not
+     * timed, i.e. the first listener was added while it ran.
      */
-    @Override
-    public Object addItemAt(int index) throws UnsupportedOperationException {
-        Object newItemId = itemGenerator.createNewItemId();
-        addItemAt(index, newItemId);
-        return newItemId;
+    private void operationCompleted(TxOperation operation, int itemCount, long startNanos) {
+        if (metricsListeners == null || startNanos == 0) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        for (TxMetricsListener metricsListener : metricsListeners) {
+            metricsListener.operationCompleted(this, operation, itemCount, durationNanos);
+        }
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see com.vaadin.data.util.AbstractInMemoryContainer#addItemAt(int,
-     * java.lang.Object)
+    private static int changeCount(ChangeSet changes) {
+        return changes.getInsertedItems().size() + changes.getUpdatedItems().size()
+                + changes.getDeletedItemIds().size();
+    }
+
+    /**
+     * @return number of new items, counted without building a change set
      */
-    @Override
-    public Item addItemAt(int index, Object newItemId)
-            throws UnsupportedOperationException {
-        if (itemGenerator == null) {
-            throw new UnsupportedOperationException();
-        }
-        if (newItemId == null) {
-            return null;
-        }
-        if (index < 0) {
-            return null;
+    public int getPendingInsertCount() {
+        int count = 0;
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            if (txItemWrapper.isNew()) {
+                count++;
+            }
         }
-        if (allItems.containsKey(newItemId)
-                || deletedById.containsKey(newItemId)) {
-            return null;
+        return count;
+    }
+
+    /**
+     * @return number of existing items with pending property values, counted without building a change set
+     */
+    public int getPendingUpdateCount() {
+        int count = 0;
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            if (!txItemWrapper.isNew() && txItemWrapper.hasPendingValues()) {
+                count++;
+            }
         }
-        Item newItem = itemGenerator.createNewItem(newItemId);
-        TxItemWrapper newItemWrapper = new TxItemWrapper(this, newItem,
-                newItemId, true);
-        allItems.put(newItemId, newItemWrapper);
-        internalAddItemAt(index, newItemId, newItemWrapper, true);
-        startImplicitTransaction();
-        return newItemWrapper;
+        return count;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see
-     * com.vaadin.data.util.AbstractInMemoryContainer#addItemAfter(java.lang
-     * .Object)
+    /**
+     * @return number of removed items
+     */
+    public int getPendingDeleteCount() {
+        return deletedById.size();
+    }
+
+    /**
+     * Filters the items, and keeps the positions of the visible items in the inner container for finding the index of
+     * an item among them, see {@link #searchFilteredItemIds(Object)}.
      */
     @Override
-    public Object addItemAfter(Object previousItemId)
-            throws UnsupportedOperationException {
-        Object newItemId = itemGenerator.createNewItemId();
-        addItemAfter(previousItemId, newItemId);
-        return newItemId;
+    protected boolean doFilterContainer(boolean hasFilters) {
+        boolean changed = super.doFilterContainer(hasFilters);
+        itemIds.retainPositions(isFiltered() ? getFilteredItemIds() : null);
+        return changed;
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see
-     * com.vaadin.data.util.AbstractInMemoryContainer#addItemAfter(java.lang
-     * .Object, java.lang.Object)
+    /**
+     * Filters all items, reporting the duration to the metrics listeners.
      */
     @Override
-    public Item addItemAfter(Object previousItemId, Object newItemId)
-            throws UnsupportedOperationException {
-        return addItemAt(indexOfId(previousItemId) + 1, newItemId);
+    protected void filterAll() {
+        long startNanos = startTiming(TxOperation.FILTER);
+        super.filterAll();
+        operationCompleted(TxOperation.FILTER, itemIds.size(), startNanos);
     }
 
     /**
@@ -409,6 +2385,12 @@ public class TransactionalContainerWrapper extends
      */
     @Override
     public void sort(Object[] propertyId, boolean[] ascending) {
+        // The former order of all ids is kept, as sorting replaces it with a private copy anyway
+        Savepoint savepoint = latestSavepoint();
+        if (savepoint != null) {
+            savepoint.recordReordered(new ArrayList<Object>(itemIds));
+        }
+        sorted = true;
         sortContainer(propertyId, ascending);
     }
 
@@ -497,4 +2479,60 @@ public class TransactionalContainerWrapper extends
     public void removeContainerFilters(Object propertyId) {
         super.removeFilters(propertyId);
     }
+
+    /**
+     * Writes the wrappers of the items with pending changes, which are in {@link #dirtyById}, and of the items with
+     * value change listeners. The other wrappers are created again when the items are accessed, and only their
+     * versions are written if versions are checked.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<TxItemWrapper> listenedItems = new ArrayList<TxItemWrapper>();
+        Map<Object, Object> versions = null;
+        if (itemVersionProvider != null) {
+            versions = restoredVersions == null ? new HashMap<Object, Object>()
+                    : new HashMap<Object, Object>(restoredVersions);
+        }
+        for (TxItemWrapper txItemWrapper : allItems.values()) {
+            if (dirtyById.containsKey(txItemWrapper.getItemId())) {
+                continue;
+            }
+            if (txItemWrapper.hasValueChangeListeners()) {
+                listenedItems.add(txItemWrapper);
+            } else if (versions != null) {
+                versions.put(txItemWrapper.getItemId(), txItemWrapper.getVersion());
+            }
+        }
+        out.writeObject(listenedItems);
+        out.writeObject(versions);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        allItems = new HashMap<Object, TxItemWrapper>();
+        for (TxItemWrapper txItemWrapper : dirtyById.values()) {
+            allItems.put(txItemWrapper.getItemId(), txItemWrapper);
+        }
+        for (TxItemWrapper txItemWrapper : (List<TxItemWrapper>) in.readObject()) {
+            allItems.put(txItemWrapper.getItemId(), txItemWrapper);
+        }
+        restoredVersions = (Map<Object, Object>) in.readObject();
+    }
+
+    /**
+     * Puts a deserialized wrapper of an existing item back to the wrapped items, unless the item has a wrapper
+     * already. Called for every deserialized wrapper after the whole object graph has been read, so that wrappers
+     * referenced by the journal or savepoints stay the wrappers of their items.
+     */
+    void adoptItemWrapper(TxItemWrapper txItemWrapper) {
+        Object itemId = txItemWrapper.getItemId();
+        if (!txItemWrapper.isNew() && !allItems.containsKey(itemId)
+                && !deletedById.containsKey(itemId) && itemIds.contains(itemId)) {
+            allItems.put(itemId, txItemWrapper);
+            if (restoredVersions != null) {
+                restoredVersions.remove(itemId);
+            }
+        }
+    }
 }
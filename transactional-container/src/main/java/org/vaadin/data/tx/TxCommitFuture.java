@@ -0,0 +1,145 @@
+package org.vaadin.data.tx;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * TxCommitFuture is the result of {@link TransactionalContainerWrapper#commitAsync(java.util.concurrent.Executor,
+ * java.util.concurrent.Executor)}. It completes with the committed change set when the changes have been applied and
+ * the wrapper has been updated, or fails with the exception thrown while applying the changes or by the completion
+ * executor. A commit cannot be cancelled once it has been started.
+ * <p>
+ * Callbacks are called by the completion executor of the commit, so with a UI based completion executor they run
+ * while holding the session lock, like the {@link TxListener}s of the wrapper. If the completion executor rejects the
+ * completion, they are called by the thread which applied the changes.
+ * </p>
+ */
+public final class TxCommitFuture implements Future<ChangeSet> {
+
+    /**
+     * Callback notified of the outcome of an asynchronous commit.
+     */
+    public interface Callback extends Serializable {
+
+        /**
+         * Called after the changes have been committed.
+         *
+         * @param changes
+         *            the committed changes
+         */
+        void committed(ChangeSet changes);
+
+        /**
+         * Called if applying the changes failed, in which case the transaction stays open with all its pending
+         * changes, or if the completion executor has rejected the completion of the commit.
+         *
+         * @param failure
+         *            the exception thrown while applying the changes, a {@link TxConflictException} if items have
+         *            been changed by another transaction, or the exception thrown by the completion executor
+         */
+        void failed(Throwable failure);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback> callbacks = new ArrayList<Callback>();
+    private volatile ChangeSet changes;
+    private volatile Throwable failure;
+
+    TxCommitFuture() {
+    }
+
+    /**
+     * Adds a callback. If the commit has completed already, the callback is called right away by the calling
+     * thread.
+     *
+     * @param callback
+     *            callback to add
+     */
+    public void addCallback(Callback callback) {
+        synchronized (callbacks) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    void complete(ChangeSet changes) {
+        this.changes = changes;
+        finish();
+    }
+
+    void fail(Throwable failure) {
+        this.failure = failure;
+        finish();
+    }
+
+    private void finish() {
+        List<Callback> toNotify;
+        synchronized (callbacks) {
+            done.countDown();
+            toNotify = new ArrayList<Callback>(callbacks);
+            callbacks.clear();
+        }
+        for (Callback callback : toNotify) {
+            notify(callback);
+        }
+    }
+
+    private void notify(Callback callback) {
+        if (failure != null) {
+            callback.failed(failure);
+        } else {
+            callback.committed(changes);
+        }
+    }
+
+    /**
+     * A started commit cannot be cancelled.
+     *
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public ChangeSet get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public ChangeSet get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private ChangeSet getResult() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,33 @@
+package org.vaadin.data.tx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TxConflictException is thrown by {@link TransactionalContainerWrapper#commit()} if items with pending changes have
+ * been changed or removed by another transaction since they were read, see {@link ItemVersionProvider}. Nothing is
+ * committed, and the transaction stays open with all its pending changes.
+ */
+public class TxConflictException extends RuntimeException {
+
+    private final List<Object> conflictingItemIds;
+
+    /**
+     * Creates a new TxConflictException.
+     *
+     * @param conflictingItemIds
+     *            Ids of the items changed by another transaction.
+     */
+    public TxConflictException(List<Object> conflictingItemIds) {
+        super("Items changed by another transaction: " + conflictingItemIds);
+        this.conflictingItemIds = Collections.unmodifiableList(new ArrayList<Object>(conflictingItemIds));
+    }
+
+    /**
+     * @return ids of the items changed or removed by another transaction
+     */
+    public List<Object> getConflictingItemIds() {
+        return conflictingItemIds;
+    }
+}
@@ -0,0 +1,843 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.util.ListSet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * TxIdListOverlay is an internal list of the ids of an inner container with ids inserted and removed, used by
+ * TxItemIdList so that item set changes do not copy the ids of the inner container. Each change is kept by the
+ * position of the inner item it removes or precedes, and the inner ids are read page by page with
+ * {@link Container.Indexed#getItemIds(int, int)} only when they are accessed. The changes index the positions of the
+ * inner ids they refer to, the positions of other inner ids are looked up with {@link TxInnerIdPositions}.
+ * <p>
+ * The changes form a rank tree ordered by their inner positions, a treap in which every change also holds the sum of
+ * the size changes in its subtree. The index of an id and the id at an index are found in one descent, so lookups and
+ * updates take O(log changes) time besides the inner container lookups, and the memory depends on the number of
+ * changes only.
+ * </p>
+ * <p>
+ * The positions refer to the inner container at the time of the changes. When the inner container changes, for
+ * example when another wrapper of it commits, the positions are looked up again by the item ids. A change is noticed
+ * by the size of the inner container, or by {@link #innerItemSetChanged()}, which TxItemIdList calls on the item set
+ * change events of the inner container.
+ * </p>
+ */
+class TxIdListOverlay implements Serializable {
+
+    /**
+     * Number of inner ids read at a time.
+     */
+    static final int PAGE_SIZE = 100;
+
+    private static final Random PRIORITIES = new Random();
+
+    private final Container.Indexed innerContainer;
+    private final TxInnerIdPositions innerPositions;
+    private int innerSize;
+    /**
+     * True if the inner container items have changed since the positions were last looked up. Set by the thread
+     * committing another wrapper of the inner container.
+     */
+    private volatile boolean innerChanged;
+    private int size;
+    /**
+     * Root of the tree of the changes, at most one per inner position.
+     */
+    private Change root;
+    private int changeCount;
+    /**
+     * Changes by the inserted ids and by the removed ids, rebuilt after deserialization.
+     */
+    private transient Map<Object, Change> changesByInsertedId = new HashMap<Object, Change>();
+    private transient Map<Object, Change> changesByRemovedId = new HashMap<Object, Change>();
+    /**
+     * Changes by the ids of their inner items, whether removed or not, rebuilt after deserialization.
+     */
+    private transient Map<Object, Change> changesByInnerId = new HashMap<Object, Change>();
+    /**
+     * Sum of the size changes before the change returned by {@link #floor(int)}.
+     */
+    private transient int floorShift;
+    /**
+     * Number of modifications, for failing iterators of a modified list.
+     */
+    private transient int modCount;
+
+    /**
+     * Ids inserted before an inner item, and whether the inner item itself is removed. A node of the tree of changes.
+     */
+    private static final class Change implements Serializable {
+        private int innerPosition;
+        /**
+         * Id of the inner item at the position, null at the end of the inner items.
+         */
+        private Object innerId;
+        private boolean removed;
+        private final List<Object> insertedIds = new ArrayList<Object>(1);
+
+        private final int priority = PRIORITIES.nextInt();
+        private Change left;
+        private Change right;
+        /**
+         * Sum of the size changes of this change and its subtrees.
+         */
+        private int sum;
+
+        Change(int innerPosition, Object innerId) {
+            this.innerPosition = innerPosition;
+            this.innerId = innerId;
+        }
+
+        /**
+         * @return change of the size of the list
+         */
+        int delta() {
+            return insertedIds.size() - (removed ? 1 : 0);
+        }
+
+        boolean isEmpty() {
+            return !removed && insertedIds.isEmpty();
+        }
+
+        void update() {
+            sum = sum(left) + delta() + sum(right);
+        }
+
+        static int sum(Change change) {
+            return change == null ? 0 : change.sum;
+        }
+    }
+
+    TxIdListOverlay(TxInnerIdPositions innerPositions) {
+        this.innerPositions = innerPositions;
+        innerContainer = innerPositions.getInnerContainer();
+        innerSize = innerContainer.size();
+        size = innerSize;
+    }
+
+    /**
+     * Marks the positions of the changes to be looked up again before the next access, as the items of the inner
+     * container have changed.
+     */
+    void innerItemSetChanged() {
+        innerChanged = true;
+    }
+
+    /**
+     * @return true if there are no changes to the inner container ids
+     */
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    int size() {
+        checkInner();
+        return size;
+    }
+
+    Object get(int index) {
+        checkInner();
+        checkIndex(index, size - 1);
+        Change change = floor(index);
+        int innerPosition;
+        if (change == null) {
+            innerPosition = index;
+        } else {
+            int start = change.innerPosition + floorShift;
+            if (index < start + change.insertedIds.size()) {
+                return change.insertedIds.get(index - start);
+            }
+            innerPosition = index - floorShift - change.delta();
+        }
+        Object id = innerContainer.getIdByIndex(innerPosition);
+        innerPositions.put(innerPosition, id);
+        return id;
+    }
+
+    boolean contains(Object id) {
+        checkInner();
+        return changesByInsertedId.containsKey(id)
+                || !changesByRemovedId.containsKey(id) && innerContainer.containsId(id);
+    }
+
+    int indexOf(Object id) {
+        checkInner();
+        Change change = changesByInsertedId.get(id);
+        if (change != null) {
+            return visibleStart(change) + change.insertedIds.indexOf(id);
+        }
+        if (changesByRemovedId.containsKey(id)) {
+            return -1;
+        }
+        change = changesByInnerId.get(id);
+        if (change != null) {
+            return visibleStart(change) + change.insertedIds.size();
+        }
+        int innerPosition = innerPositions.indexOf(id);
+        if (innerPosition < 0) {
+            return -1;
+        }
+        change = find(innerPosition);
+        return innerPosition + shiftBefore(innerPosition) + (change != null ? change.insertedIds.size() : 0);
+    }
+
+    /**
+     * Inserts an id, which must not be in the list, before the given index. An inner id removed from the same
+     * position is put back instead.
+     */
+    void add(int index, Object id) {
+        checkInner();
+        checkIndex(index, size);
+        Change removedChange = changesByRemovedId.get(id);
+        if (removedChange != null && visibleStart(removedChange) + removedChange.insertedIds.size() == index) {
+            removedChange.removed = false;
+            changesByRemovedId.remove(id);
+            size++;
+            changed(removedChange);
+            return;
+        }
+        insert(index, Collections.singletonList(id));
+    }
+
+    /**
+     * Inserts ids, which must not be in the list, before the given index. Unless some of them are inner ids removed
+     * before, they are inserted as a single change.
+     */
+    void addAll(int index, Collection<?> ids) {
+        for (Object id : ids) {
+            if (changesByRemovedId.containsKey(id)) {
+                for (Object insertedId : ids) {
+                    add(index++, insertedId);
+                }
+                return;
+            }
+        }
+        checkInner();
+        checkIndex(index, size);
+        insert(index, new ArrayList<Object>(ids));
+    }
+
+    /**
+     * Inserts the ids to the change covering the index, or to a new change at the inner position of the index.
+     */
+    private void insert(int index, List<Object> ids) {
+        Change change = floor(index);
+        int offset;
+        if (change != null && index <= change.innerPosition + floorShift + change.insertedIds.size()) {
+            offset = index - change.innerPosition - floorShift;
+        } else {
+            int innerPosition = change == null ? index : index - floorShift - change.delta();
+            change = new Change(innerPosition,
+                    innerPosition < innerSize ? innerContainer.getIdByIndex(innerPosition) : null);
+            root = insert(root, change);
+            changeCount++;
+            if (change.innerId != null) {
+                changesByInnerId.put(change.innerId, change);
+            }
+            offset = 0;
+        }
+        change.insertedIds.addAll(offset, ids);
+        for (Object id : ids) {
+            changesByInsertedId.put(id, change);
+        }
+        size += ids.size();
+        changed(change);
+    }
+
+    Object remove(int index) {
+        checkInner();
+        checkIndex(index, size - 1);
+        Change change = floor(index);
+        if (change != null) {
+            int start = change.innerPosition + floorShift;
+            if (index < start + change.insertedIds.size()) {
+                Object id = change.insertedIds.get(index - start);
+                removeInserted(change, id);
+                return id;
+            }
+        }
+        int innerPosition = change == null ? index : index - floorShift - change.delta();
+        Object id = innerContainer.getIdByIndex(innerPosition);
+        markRemoved(innerPosition, id);
+        return id;
+    }
+
+    /**
+     * @return true if the id was in the list
+     */
+    boolean remove(Object id) {
+        checkInner();
+        Change change = changesByInsertedId.get(id);
+        if (change != null) {
+            removeInserted(change, id);
+            return true;
+        }
+        if (changesByRemovedId.containsKey(id)) {
+            return false;
+        }
+        change = changesByInnerId.get(id);
+        int innerPosition = change != null ? change.innerPosition : innerPositions.indexOf(id);
+        if (innerPosition < 0) {
+            return false;
+        }
+        markRemoved(innerPosition, id);
+        return true;
+    }
+
+    /**
+     * Removes the given ids. Unless there are only a few of them, the inner positions of the removed inner ids are
+     * found by reading the inner ids once a page at a time, instead of looking up each id.
+     *
+     * @param ids
+     *         ids to remove, expected to have a fast contains()
+     * @return true if the list was changed
+     */
+    boolean removeAll(Collection<?> ids) {
+        checkInner();
+        if (ids.size() <= PAGE_SIZE) {
+            boolean changed = false;
+            for (Object id : ids) {
+                changed |= remove(id);
+            }
+            return changed;
+        }
+        int sizeBefore = size;
+        for (Object id : ids) {
+            Change change = changesByInsertedId.get(id);
+            if (change != null) {
+                removeInserted(change, id);
+            }
+        }
+        for (int pageStart = 0; pageStart < innerSize; pageStart += PAGE_SIZE) {
+            List<?> page = innerContainer.getItemIds(pageStart, Math.min(PAGE_SIZE, innerSize - pageStart));
+            for (int i = 0; i < page.size(); i++) {
+                Object id = page.get(i);
+                if (ids.contains(id) && !changesByRemovedId.containsKey(id)) {
+                    markRemoved(pageStart + i, id);
+                }
+            }
+        }
+        return size != sizeBefore;
+    }
+
+    private void removeInserted(Change change, Object id) {
+        changesByInsertedId.remove(id);
+        change.insertedIds.remove(id);
+        size--;
+        changed(change);
+    }
+
+    private void markRemoved(int innerPosition, Object id) {
+        Change change = find(innerPosition);
+        if (change == null) {
+            change = new Change(innerPosition, id);
+            root = insert(root, change);
+            changeCount++;
+        }
+        change.removed = true;
+        change.innerId = id;
+        changesByRemovedId.put(id, change);
+        changesByInnerId.put(id, change);
+        size--;
+        changed(change);
+    }
+
+    /**
+     * Updates the sums on the path to a modified change, or drops the change if it has become empty.
+     */
+    private void changed(Change change) {
+        if (change.isEmpty()) {
+            root = delete(root, change.innerPosition);
+            changeCount--;
+            if (change.innerId != null) {
+                changesByInnerId.remove(change.innerId);
+            }
+        } else {
+            update(root, change.innerPosition);
+        }
+        modCount++;
+    }
+
+    /**
+     * @return iterator of the ids from the given index on, reading the inner ids a page at a time
+     */
+    Iterator<Object> iterator(int index) {
+        checkInner();
+        checkIndex(index, size);
+        return new OverlayIterator(index, false);
+    }
+
+    /**
+     * @return copy of the ids in the given range, with the inner ids read a page at a time and their positions
+     * recorded, as the ids shown are the ones likely to be looked up next
+     */
+    List<Object> subList(int fromIndex, int toIndex) {
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException("fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+        }
+        checkIndex(toIndex, size());
+        checkIndex(fromIndex, size);
+        List<Object> ids = new ArrayList<Object>(toIndex - fromIndex);
+        Iterator<Object> iterator = new OverlayIterator(fromIndex, true);
+        for (int i = fromIndex; i < toIndex; i++) {
+            ids.add(iterator.next());
+        }
+        return ids;
+    }
+
+    /**
+     * @return all ids in a new list
+     */
+    ListSet<Object> toListSet() {
+        ListSet<Object> ids = new ListSet<Object>(size());
+        for (Iterator<Object> iterator = iterator(0); iterator.hasNext(); ) {
+            ids.add(iterator.next());
+        }
+        return ids;
+    }
+
+    /**
+     * Records the inner positions of the ids the changes refer to, as the removed ids are likely to be looked up when
+     * the overlay is dropped and they are put back. Nothing is recorded if the inner container has changed.
+     */
+    void recordInnerPositions() {
+        if (innerChanged || innerSize != innerContainer.size()) {
+            return;
+        }
+        for (Change change : changesByInnerId.values()) {
+            innerPositions.put(change.innerPosition, change.innerId);
+        }
+    }
+
+    /**
+     * Returns the indexes of the inserted ids without reading the inner ids.
+     *
+     * @return indexes of the inserted ids in ascending order
+     */
+    int[] insertedIndexes() {
+        checkInner();
+        int[] indexes = new int[changesByInsertedId.size()];
+        int count = 0;
+        int shift = 0;
+        for (Change change : inOrder()) {
+            int start = change.innerPosition + shift;
+            for (int i = 0; i < change.insertedIds.size(); i++) {
+                indexes[count++] = start + i;
+            }
+            shift += change.delta();
+        }
+        return indexes;
+    }
+
+    /**
+     * @return read-only list view of the ids
+     */
+    List<Object> asList() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                return TxIdListOverlay.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return TxIdListOverlay.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return TxIdListOverlay.this.contains(o);
+            }
+
+            @Override
+            public int indexOf(Object o) {
+                return TxIdListOverlay.this.indexOf(o);
+            }
+
+            @Override
+            public Iterator<Object> iterator() {
+                return TxIdListOverlay.this.iterator(0);
+            }
+        };
+    }
+
+    /**
+     * Finds the last change whose first id is at or before the given index, and sets {@link #floorShift} to the sum
+     * of the size changes before it.
+     *
+     * @return the change, or null if the ids up to the index are inner ids without changes
+     */
+    private Change floor(int index) {
+        Change floor = null;
+        int shift = 0;
+        Change node = root;
+        while (node != null) {
+            int shiftBefore = shift + Change.sum(node.left);
+            if (index < node.innerPosition + shiftBefore) {
+                node = node.left;
+            } else {
+                floor = node;
+                floorShift = shiftBefore;
+                shift = shiftBefore + node.delta();
+                node = node.right;
+            }
+        }
+        return floor;
+    }
+
+    /**
+     * @return the change at the given inner position, or null if there is none
+     */
+    private Change find(int innerPosition) {
+        Change node = root;
+        while (node != null && node.innerPosition != innerPosition) {
+            node = innerPosition < node.innerPosition ? node.left : node.right;
+        }
+        return node;
+    }
+
+    /**
+     * @return the first change after the given inner position, or null if there is none
+     */
+    private Change higher(int innerPosition) {
+        Change higher = null;
+        Change node = root;
+        while (node != null) {
+            if (innerPosition < node.innerPosition) {
+                higher = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return higher;
+    }
+
+    /**
+     * @return sum of the size changes of the changes before the given inner position
+     */
+    private int shiftBefore(int innerPosition) {
+        int shift = 0;
+        Change node = root;
+        while (node != null) {
+            if (node.innerPosition < innerPosition) {
+                shift += Change.sum(node.left) + node.delta();
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * @return index of the first id of the change
+     */
+    private int visibleStart(Change change) {
+        return change.innerPosition + shiftBefore(change.innerPosition);
+    }
+
+    private static Change insert(Change node, Change change) {
+        if (node == null) {
+            change.update();
+            return change;
+        }
+        if (change.innerPosition < node.innerPosition) {
+            node.left = insert(node.left, change);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, change);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    private static Change delete(Change node, int innerPosition) {
+        if (innerPosition < node.innerPosition) {
+            node.left = delete(node.left, innerPosition);
+        } else if (innerPosition > node.innerPosition) {
+            node.right = delete(node.right, innerPosition);
+        } else {
+            return merge(node.left, node.right);
+        }
+        node.update();
+        return node;
+    }
+
+    /**
+     * Merges two subtrees, all changes of the first one being before those of the second one.
+     */
+    private static Change merge(Change first, Change second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            first.update();
+            return first;
+        }
+        second.left = merge(first, second.left);
+        second.update();
+        return second;
+    }
+
+    /**
+     * Updates the sums on the path to the change at the given inner position.
+     */
+    private static void update(Change node, int innerPosition) {
+        if (innerPosition < node.innerPosition) {
+            update(node.left, innerPosition);
+        } else if (innerPosition > node.innerPosition) {
+            update(node.right, innerPosition);
+        }
+        node.update();
+    }
+
+    private static Change rotateRight(Change node) {
+        Change left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        return left;
+    }
+
+    private static Change rotateLeft(Change node) {
+        Change right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        return right;
+    }
+
+    /**
+     * @return the changes in the order of their inner positions
+     */
+    private List<Change> inOrder() {
+        List<Change> changes = new ArrayList<Change>(changeCount);
+        List<Change> path = new ArrayList<Change>();
+        Change node = root;
+        while (node != null || !path.isEmpty()) {
+            while (node != null) {
+                path.add(node);
+                node = node.left;
+            }
+            node = path.remove(path.size() - 1);
+            changes.add(node);
+            node = node.right;
+        }
+        return changes;
+    }
+
+    /**
+     * Builds the tree and the lookup maps from the given non-empty changes in the order of their inner positions.
+     */
+    private void build(List<Change> changes) {
+        root = null;
+        changeCount = changes.size();
+        changesByInsertedId = new HashMap<Object, Change>();
+        changesByRemovedId = new HashMap<Object, Change>();
+        changesByInnerId = new HashMap<Object, Change>();
+        size = innerSize;
+        for (Change change : changes) {
+            change.left = null;
+            change.right = null;
+            root = insert(root, change);
+            for (Object id : change.insertedIds) {
+                changesByInsertedId.put(id, change);
+            }
+            if (change.innerId != null) {
+                changesByInnerId.put(change.innerId, change);
+            }
+            if (change.removed) {
+                changesByRemovedId.put(change.innerId, change);
+            }
+            size += change.delta();
+        }
+        modCount++;
+    }
+
+    private static void checkIndex(int index, int maxIndex) {
+        if (index < 0 || index > maxIndex) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (maxIndex + 1));
+        }
+    }
+
+    /**
+     * Looks up the positions of the changes again if the inner container has changed. Removed ids which are not in
+     * the inner container anymore and inserted ids which are there now are dropped. Ids inserted before an inner item
+     * which is not there anymore are kept after the previous change.
+     * <p>
+     * Unless there are only a few changes, the positions are found by reading the inner ids once a page at a time,
+     * instead of looking up each id.
+     * </p>
+     */
+    private void checkInner() {
+        int newInnerSize = innerContainer.size();
+        if (newInnerSize == innerSize && !innerChanged) {
+            return;
+        }
+        innerChanged = false;
+        Map<Object, Integer> positions = changeCount > PAGE_SIZE ? readInnerPositions(newInnerSize) : null;
+        TreeMap<Integer, Change> rebased = new TreeMap<Integer, Change>();
+        int previousPosition = 0;
+        for (Change change : inOrder()) {
+            int position;
+            if (change.innerId == null) {
+                position = newInnerSize;
+            } else if (positions != null) {
+                Integer innerPosition = positions.get(change.innerId);
+                position = innerPosition != null ? innerPosition : -1;
+            } else {
+                position = innerPositions.indexOf(change.innerId);
+            }
+            if (position < 0) {
+                change.removed = false;
+                position = previousPosition;
+                change.innerId = position < newInnerSize ? innerContainer.getIdByIndex(position) : null;
+            }
+            previousPosition = position;
+            for (Iterator<Object> ids = change.insertedIds.iterator(); ids.hasNext(); ) {
+                Object id = ids.next();
+                if (innerContainer.containsId(id) && !changesByRemovedId.containsKey(id)) {
+                    ids.remove();
+                }
+            }
+            change.innerPosition = position;
+            Change target = rebased.get(position);
+            if (target == null) {
+                rebased.put(position, change);
+            } else {
+                target.insertedIds.addAll(change.insertedIds);
+                if (change.removed) {
+                    target.removed = true;
+                    target.innerId = change.innerId;
+                }
+            }
+        }
+        List<Change> changes = new ArrayList<Change>(rebased.size());
+        for (Change change : rebased.values()) {
+            if (!change.isEmpty()) {
+                changes.add(change);
+            }
+        }
+        innerSize = newInnerSize;
+        build(changes);
+    }
+
+    /**
+     * Reads the inner ids a page at a time until the positions of the inner ids of all changes have been found.
+     *
+     * @return positions of the inner ids of the changes which are still in the inner container
+     */
+    private Map<Object, Integer> readInnerPositions(int newInnerSize) {
+        Map<Object, Integer> positions = new HashMap<Object, Integer>();
+        for (int pageStart = 0; pageStart < newInnerSize && positions.size() < changesByInnerId.size();
+                pageStart += PAGE_SIZE) {
+            List<?> page = innerContainer.getItemIds(pageStart, Math.min(PAGE_SIZE, newInnerSize - pageStart));
+            for (int i = 0; i < page.size(); i++) {
+                Object id = page.get(i);
+                if (changesByInnerId.containsKey(id)) {
+                    positions.put(id, pageStart + i);
+                }
+            }
+        }
+        return positions;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        build(inOrder());
+    }
+
+    /**
+     * Iterates the inserted ids and the remaining inner ids in order, reading the inner ids a page at a time.
+     */
+    private final class OverlayIterator implements Iterator<Object> {
+        private int index;
+        /**
+         * The first change not passed yet, and the sum of the size changes of the changes passed.
+         */
+        private Change change;
+        private int shift;
+        private final int expectedSize = size;
+        private final int expectedModCount = modCount;
+        private List<?> page = Collections.emptyList();
+        private int pageStart;
+        private final boolean recordPositions;
+
+        OverlayIterator(int index, boolean recordPositions) {
+            this.index = index;
+            this.recordPositions = recordPositions;
+            change = floor(index);
+            if (change == null) {
+                change = higher(-1);
+            } else {
+                shift = floorShift;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < expectedSize;
+        }
+
+        @Override
+        public Object next() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (index >= expectedSize) {
+                throw new NoSuchElementException();
+            }
+            while (change != null) {
+                int start = change.innerPosition + shift;
+                if (index < start) {
+                    break;
+                }
+                if (index < start + change.insertedIds.size()) {
+                    return change.insertedIds.get(index++ - start);
+                }
+                shift += change.delta();
+                change = higher(change.innerPosition);
+            }
+            int innerPosition = index++ - shift;
+            if (innerPosition < pageStart || innerPosition >= pageStart + page.size()) {
+                pageStart = innerPosition;
+                page = innerContainer.getItemIds(innerPosition, Math.min(PAGE_SIZE, innerSize - innerPosition));
+                if (recordPositions) {
+                    innerPositions.putAll(pageStart, page);
+                }
+            }
+            return page.get(innerPosition - pageStart);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Container;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TxInnerIdPositions is an internal cache of the positions of ids in an inner container, used by TxItemIdList and
+ * TxIdListOverlay so that looking up the index of an item shown recently, for example the previous item of
+ * addItemAfter(), does not scan the inner container ids with {@link Container.Indexed#indexOfId(Object)}.
+ * <p>
+ * The cache is filled as the ids are read and looked up, and keeps the positions of the {@value #MAX_POSITIONS} ids
+ * used most recently, and the positions of the ids shown by the filters of the wrapper, see {@link #retain(Collection)}.
+ * Other ids are looked up with indexOfId(), which is a linear scan in the in-memory containers of Vaadin. A position is
+ * checked with {@link Container.Indexed#getIdByIndex(int)} before it is used, so changes of the inner container only
+ * make the positions looked up again. The positions are not serialized.
+ * </p>
+ */
+class TxInnerIdPositions implements Serializable {
+
+    /**
+     * Number of positions kept, the positions used least recently are dropped first.
+     */
+    static final int MAX_POSITIONS = 1000;
+
+    private final Container.Indexed innerContainer;
+    private transient Map<Object, Integer> positions;
+    /**
+     * Positions kept by {@link #retain(Collection)}, null if there are none.
+     */
+    private transient Map<Object, Integer> retainedPositions;
+
+    TxInnerIdPositions(Container.Indexed innerContainer) {
+        this.innerContainer = innerContainer;
+    }
+
+    Container.Indexed getInnerContainer() {
+        return innerContainer;
+    }
+
+    /**
+     * @return position of the id in the inner container, or -1 if it is not there
+     */
+    int indexOf(Object id) {
+        Map<Object, Integer> cache = retainedPositions != null && retainedPositions.containsKey(id)
+                ? retainedPositions : positions();
+        Integer position = cache.get(id);
+        if (position != null) {
+            if (position < innerContainer.size() && id.equals(innerContainer.getIdByIndex(position))) {
+                return position;
+            }
+            cache.remove(id);
+        }
+        int innerPosition = innerContainer.indexOfId(id);
+        if (innerPosition >= 0) {
+            cache.put(id, innerPosition);
+        }
+        return innerPosition;
+    }
+
+    /**
+     * Records the position of an id read from the inner container.
+     */
+    void put(int position, Object id) {
+        positions().put(id, position);
+    }
+
+    /**
+     * Records the positions of ids read from the inner container.
+     *
+     * @param start
+     *         position of the first id
+     * @param ids
+     *         consecutive inner container ids
+     */
+    void putAll(int start, List<?> ids) {
+        Map<Object, Integer> positions = positions();
+        for (int i = Math.max(0, ids.size() - MAX_POSITIONS); i < ids.size(); i++) {
+            positions.put(ids.get(i), start + i);
+        }
+    }
+
+    /**
+     * Records the positions of the given ids and keeps them until this is called again, reading the inner container
+     * ids a page at a time. The ids are the ones shown by the filters of the wrapper, whose positions are looked up by
+     * the binary search for the index of an item among them.
+     *
+     * @param ids
+     *         ids to keep the positions of, with a fast contains(), or null to drop the positions kept
+     */
+    void retain(Collection<?> ids) {
+        if (ids == null) {
+            retainedPositions = null;
+            return;
+        }
+        retainedPositions = new HashMap<Object, Integer>();
+        int innerSize = innerContainer.size();
+        for (int start = 0; start < innerSize && retainedPositions.size() < ids.size();
+                start += TxIdListOverlay.PAGE_SIZE) {
+            List<?> page = innerContainer.getItemIds(start, Math.min(TxIdListOverlay.PAGE_SIZE, innerSize - start));
+            for (int i = 0; i < page.size(); i++) {
+                if (ids.contains(page.get(i))) {
+                    retainedPositions.put(page.get(i), start + i);
+                }
+            }
+        }
+    }
+
+    private Map<Object, Integer> positions() {
+        if (positions == null) {
+            positions = new LinkedHashMap<Object, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Integer> eldest) {
+                    return size() > MAX_POSITIONS;
+                }
+            };
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,553 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.util.ListSet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * TxItemIdList is an internal list of item ids used by TransactionalContainerWrapper. Until the item set of the
+ * wrapper is changed, the list is a read-only view of the inner container ids. Items added and removed are kept in a
+ * {@link TxIdListOverlay} over the inner container ids, so that the ids of a lazy inner container are read only a page
+ * at a time as they are accessed. Only reordering the ids makes a private copy of them. The list can be attached back
+ * to the inner container after the changes are committed or rolled back.
+ * <p>
+ * While there is an overlay, the list listens to the item set changes of the inner container, if it notifies them, so
+ * that the overlay is rebased when another wrapper of the inner container commits.
+ * </p>
+ * <p>
+ * Unless the ids have been copied, the index of an inner id is found from the changes of the overlay if the id is
+ * removed or has ids inserted before it, and otherwise with {@link TxInnerIdPositions}, which caches the positions of
+ * the ids read and looked up recently. Only ids which have not been shown or looked up recently are looked up by
+ * scanning the inner container ids.
+ * </p>
+ * <p>
+ * The serialized form contains only the changes to the inner container ids, unless the ids have been reordered.
+ * </p>
+ */
+class TxItemIdList extends AbstractList<Object> implements Serializable {
+
+    /**
+     * Serialized forms of the list.
+     */
+    private static final byte ATTACHED = 0;
+    private static final byte DELTA = 1;
+    private static final byte FULL = 2;
+    private static final byte OVERLAY = 3;
+
+    private final Container.Indexed innerContainer;
+    private final TxInnerIdPositions innerPositions;
+    private transient ListSet<Object> copy;
+    /**
+     * Ids added to and removed from the inner container ids, null if there are none or the ids have been copied.
+     */
+    private transient TxIdListOverlay overlay;
+    /**
+     * Listener registered to the inner container while there is an overlay, null otherwise. It is serialized with the
+     * listeners of the inner container, so it is not registered again after deserialization. It holds this list only
+     * weakly, see {@link InnerChangeListener}.
+     */
+    private InnerChangeListener innerChangeListener;
+    /**
+     * Changes to the inner container ids read from the serialized form, turned into the private copy on first access,
+     * as the inner container may not be completely deserialized yet when this list is.
+     */
+    private transient IdListDelta restoredDelta;
+
+    TxItemIdList(Container.Indexed innerContainer) {
+        this.innerContainer = innerContainer;
+        innerPositions = new TxInnerIdPositions(innerContainer);
+    }
+
+    /**
+     * Drops the private copy of the ids, so that the list shows the inner container ids again. The inner positions
+     * known from the overlay are recorded, see {@link TxIdListOverlay#recordInnerPositions()}.
+     */
+    void attach() {
+        if (copy != null || restoredDelta != null || overlay != null) {
+            if (overlay != null) {
+                overlay.recordInnerPositions();
+            }
+            copy = null;
+            restoredDelta = null;
+            setOverlay(null);
+            modCount++;
+        }
+    }
+
+    /**
+     * @return true if the list does not follow the inner container anymore
+     */
+    boolean isDetached() {
+        return copy() != null || overlay != null;
+    }
+
+    /**
+     * Keeps the inner positions of the given ids, so that finding their indexes does not scan the inner container ids,
+     * see {@link TxInnerIdPositions#retain(Collection)}. No positions are kept if the ids have been copied.
+     *
+     * @param ids
+     *         ids to keep the positions of, with a fast contains(), or null to drop the positions kept
+     */
+    void retainPositions(Collection<?> ids) {
+        innerPositions.retain(copy() != null ? null : ids);
+    }
+
+    /**
+     * @return true if the ids have been reordered into a private copy, in which finding the index of an id is a scan
+     */
+    boolean isCopied() {
+        return copy() != null;
+    }
+
+    /**
+     * @return the private copy of the ids, or null if the list is attached
+     */
+    private ListSet<Object> copy() {
+        if (restoredDelta != null) {
+            copy = restoredDelta.apply(new TxIdListOverlay(innerPositions).asList());
+            restoredDelta = null;
+        }
+        return copy;
+    }
+
+    /**
+     * @return the private copy of the ids, made from the overlay or the inner container ids if there is none yet
+     */
+    private ListSet<Object> detach() {
+        if (copy() == null) {
+            copy = (overlay != null ? overlay : new TxIdListOverlay(innerPositions)).toListSet();
+            setOverlay(null);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the overlay, a new one if the list is attached, or null if the ids have been copied
+     */
+    private TxIdListOverlay overlay() {
+        if (overlay == null && copy() == null) {
+            setOverlay(new TxIdListOverlay(innerPositions));
+        }
+        return overlay;
+    }
+
+    /**
+     * Sets the overlay, listening to the item set changes of the inner container while there is one.
+     *
+     * @param overlay
+     *         the new overlay, or null
+     */
+    private void setOverlay(TxIdListOverlay overlay) {
+        this.overlay = overlay;
+        if (!(innerContainer instanceof Container.ItemSetChangeNotifier)) {
+            return;
+        }
+        Container.ItemSetChangeNotifier notifier = (Container.ItemSetChangeNotifier) innerContainer;
+        if (overlay != null && innerChangeListener == null) {
+            innerChangeListener = new InnerChangeListener(this, notifier);
+            notifier.addItemSetChangeListener(innerChangeListener);
+        } else if (overlay == null && innerChangeListener != null) {
+            notifier.removeItemSetChangeListener(innerChangeListener);
+            innerChangeListener = null;
+        }
+    }
+
+    /**
+     * Marks the overlay of the list to be rebased when the inner container items change. The inner container may be
+     * shared by the wrappers of many sessions, so the listener holds the list weakly: once the list is not used anymore,
+     * for example when its session has expired with uncommitted changes, the listener removes itself on the next item
+     * set change of the inner container.
+     */
+    private static final class InnerChangeListener implements Container.ItemSetChangeListener {
+        private final Container.ItemSetChangeNotifier notifier;
+        private transient WeakReference<TxItemIdList> idList;
+
+        InnerChangeListener(TxItemIdList idList, Container.ItemSetChangeNotifier notifier) {
+            this.idList = new WeakReference<TxItemIdList>(idList);
+            this.notifier = notifier;
+        }
+
+        @Override
+        public void containerItemSetChange(Container.ItemSetChangeEvent event) {
+            TxItemIdList list = idList.get();
+            if (list == null) {
+                notifier.removeItemSetChangeListener(this);
+            } else if (list.overlay != null) {
+                list.overlay.innerItemSetChanged();
+            }
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeObject(idList.get());
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            idList = new WeakReference<TxItemIdList>((TxItemIdList) in.readObject());
+        }
+    }
+
+    /**
+     * Drops the overlay if it has no changes left.
+     */
+    private void overlayChanged() {
+        if (overlay.isEmpty()) {
+            setOverlay(null);
+        }
+        modCount++;
+    }
+
+    @Override
+    public Object get(int index) {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return copy.get(index);
+        }
+        if (overlay != null) {
+            return overlay.get(index);
+        }
+        Object id = innerContainer.getIdByIndex(index);
+        innerPositions.put(index, id);
+        return id;
+    }
+
+    @Override
+    public int size() {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return copy.size();
+        }
+        return overlay != null ? overlay.size() : innerContainer.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return copy.contains(o);
+        }
+        return overlay != null ? overlay.contains(o) : innerContainer.containsId(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return copy.indexOf(o);
+        }
+        return overlay != null ? overlay.indexOf(o) : innerPositions.indexOf(o);
+    }
+
+    /**
+     * {@inheritDoc} Removal through the iterator is not supported. Unless the ids have been copied, the inner
+     * container ids are read a page at a time.
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return Collections.unmodifiableList(copy).iterator();
+        }
+        return (overlay != null ? overlay : new TxIdListOverlay(innerPositions)).iterator(0);
+    }
+
+    /**
+     * Returns the ids in the given range. Unless the ids have been copied, the inner container ids are read with a
+     * single {@link Container.Indexed#getItemIds(int, int)} call per page, their positions are recorded, and the
+     * returned list is a copy which does not follow later changes. The returned list cannot be modified.
+     */
+    @Override
+    public List<Object> subList(int fromIndex, int toIndex) {
+        ListSet<Object> copy = copy();
+        if (copy != null) {
+            return Collections.unmodifiableList(copy.subList(fromIndex, toIndex));
+        }
+        if (overlay != null) {
+            return Collections.unmodifiableList(overlay.subList(fromIndex, toIndex));
+        }
+        if (fromIndex < 0 || toIndex > innerContainer.size() || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+        }
+        @SuppressWarnings("unchecked")
+        List<Object> ids = (List<Object>) innerContainer.getItemIds(fromIndex, toIndex - fromIndex);
+        innerPositions.putAll(fromIndex, ids);
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Returns the indexes of the ids added to the inner container ids without reading the other ids, unless the ids
+     * have been copied.
+     *
+     * @return indexes of the added ids in ascending order, or null if the ids have been copied
+     */
+    int[] getInsertedIndexes() {
+        if (copy() != null) {
+            return null;
+        }
+        return overlay != null ? overlay.insertedIndexes() : new int[0];
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+        return detach().set(index, element);
+    }
+
+    @Override
+    public void add(int index, Object element) {
+        TxIdListOverlay overlay = overlay();
+        if (overlay != null) {
+            overlay.add(index, element);
+            overlayChanged();
+            return;
+        }
+        copy.add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public boolean add(Object element) {
+        add(size(), element);
+        return true;
+    }
+
+    @Override
+    public Object remove(int index) {
+        TxIdListOverlay overlay = overlay();
+        if (overlay != null) {
+            Object removed = overlay.remove(index);
+            overlayChanged();
+            return removed;
+        }
+        modCount++;
+        return copy.remove(index);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        TxIdListOverlay overlay = overlay();
+        if (overlay != null) {
+            overlay.remove(o);
+            overlayChanged();
+            return true;
+        }
+        modCount++;
+        return copy.remove(o);
+    }
+
+    /**
+     * Removes the given ids through the overlay, or in a single pass over the private copy of the ids.
+     *
+     * @param c
+     *         ids to remove, expected to have a fast contains()
+     * @return true if the list was changed
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        TxIdListOverlay overlay = overlay();
+        if (overlay != null) {
+            boolean changed = overlay.removeAll(c);
+            overlayChanged();
+            return changed;
+        }
+        ListSet<Object> remaining = retainNotIn(this, c);
+        if (remaining.size() == size()) {
+            return false;
+        }
+        copy = remaining;
+        setOverlay(null);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Inserts the given ids as a single change of the overlay, or with a single copy of the private copy of the ids
+     * instead of shifting the tail once per id.
+     *
+     * @param index
+     *         position of the first inserted id
+     * @param c
+     *         ids to insert, which must not be in the list yet
+     * @return true if the list was changed
+     */
+    @Override
+    public boolean addAll(int index, Collection<?> c) {
+        if (c.isEmpty()) {
+            return false;
+        }
+        TxIdListOverlay overlay = overlay();
+        if (overlay != null) {
+            overlay.addAll(index, c);
+            overlayChanged();
+            return true;
+        }
+        copy = insertAll(this, index, c);
+        setOverlay(null);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Copies the ids to a new list with the given ids inserted at the given position.
+     *
+     * @param ids
+     *         source ids
+     * @param index
+     *         position of the first inserted id
+     * @param insertedIds
+     *         ids to insert
+     * @return new list of the ids
+     */
+    static ListSet<Object> insertAll(List<Object> ids, int index, Collection<?> insertedIds) {
+        ListSet<Object> result = new ListSet<Object>(ids.size() + insertedIds.size());
+        result.addAll(ids.subList(0, index));
+        result.addAll(insertedIds);
+        result.addAll(ids.subList(index, ids.size()));
+        return result;
+    }
+
+    /**
+     * Copies the ids which are not in the given collection to a new list.
+     *
+     * @param ids
+     *         source ids
+     * @param removedIds
+     *         ids to leave out
+     * @return new list of the remaining ids
+     */
+    static ListSet<Object> retainNotIn(List<Object> ids, Collection<?> removedIds) {
+        ListSet<Object> remaining = new ListSet<Object>(ids.size());
+        for (Object id : ids) {
+            if (!removedIds.contains(id)) {
+                remaining.add(id);
+            }
+        }
+        return remaining;
+    }
+
+    @Override
+    public void clear() {
+        restoredDelta = null;
+        setOverlay(null);
+        copy = new ListSet<Object>();
+        modCount++;
+    }
+
+    /**
+     * Writes the ids compactly: nothing if the list is attached, the overlay, and only the inserted and removed ids if
+     * the order of the other copied ids is the inner container one. Otherwise all ids are written, without the lookup
+     * structures of the list.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        ListSet<Object> copy = copy();
+        IdListDelta delta = copy == null ? null : IdListDelta.of(innerPositions, copy);
+        if (overlay != null) {
+            out.writeByte(OVERLAY);
+            out.writeObject(overlay);
+        } else if (copy == null) {
+            out.writeByte(ATTACHED);
+        } else if (delta != null) {
+            out.writeByte(DELTA);
+            out.writeObject(delta);
+        } else {
+            out.writeByte(FULL);
+            out.writeInt(copy.size());
+            for (Object id : copy) {
+                out.writeObject(id);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte form = in.readByte();
+        if (form == OVERLAY) {
+            overlay = (TxIdListOverlay) in.readObject();
+        } else if (form == DELTA) {
+            restoredDelta = (IdListDelta) in.readObject();
+        } else if (form == FULL) {
+            int size = in.readInt();
+            copy = new ListSet<Object>(size);
+            for (int i = 0; i < size; i++) {
+                copy.add(in.readObject());
+            }
+        }
+    }
+
+    /**
+     * Ids inserted to and removed from the inner container ids, with the order of the remaining ids unchanged.
+     */
+    private static final class IdListDelta implements Serializable {
+        private final List<Object> insertedIds = new ArrayList<Object>();
+        private final List<Integer> insertedPositions = new ArrayList<Integer>();
+        private final Set<Object> removedIds = new HashSet<Object>();
+
+        /**
+         * Computes the delta of the ids to the inner container ids in a single pass over both.
+         *
+         * @return the delta, or null if the ids are in a different order or the delta would not be smaller than the
+         * ids
+         */
+        static IdListDelta of(TxInnerIdPositions innerPositions, ListSet<Object> ids) {
+            Container.Indexed innerContainer = innerPositions.getInnerContainer();
+            IdListDelta delta = new IdListDelta();
+            int maxChanges = ids.size() / 2;
+            Iterator<?> innerIds = new TxIdListOverlay(innerPositions).iterator(0);
+            Object innerId = innerIds.hasNext() ? innerIds.next() : null;
+            int index = 0;
+            while (index < ids.size() || innerId != null) {
+                Object id = index < ids.size() ? ids.get(index) : null;
+                if (id != null && id.equals(innerId)) {
+                    index++;
+                    innerId = innerIds.hasNext() ? innerIds.next() : null;
+                } else if (id != null && !innerContainer.containsId(id)) {
+                    delta.insertedIds.add(id);
+                    delta.insertedPositions.add(index++);
+                } else if (innerId != null && !ids.contains(innerId)) {
+                    delta.removedIds.add(innerId);
+                    innerId = innerIds.hasNext() ? innerIds.next() : null;
+                } else {
+                    return null;
+                }
+                if (delta.insertedIds.size() + delta.removedIds.size() > maxChanges) {
+                    return null;
+                }
+            }
+            return delta;
+        }
+
+        ListSet<Object> apply(Collection<?> innerIds) {
+            ListSet<Object> ids = new ListSet<Object>(innerIds.size() + insertedIds.size());
+            int inserted = 0;
+            for (Object innerId : innerIds) {
+                while (inserted < insertedIds.size() && insertedPositions.get(inserted) == ids.size()) {
+                    ids.add(insertedIds.get(inserted++));
+                }
+                if (!removedIds.contains(innerId)) {
+                    ids.add(innerId);
+                }
+            }
+            while (inserted < insertedIds.size()) {
+                ids.add(insertedIds.get(inserted++));
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.vaadin.data.tx;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.util.DefaultItemSorter;
+import com.vaadin.data.util.ItemSorter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * TxItemSorter is the internal default item sorter of TransactionalContainerWrapper. It orders items like
+ * {@link DefaultItemSorter}, but reads the values through
+ * {@link TransactionalContainerWrapper#getReadThroughValue(Object, Object)}, so sorting neither creates item wrappers
+ * nor property views for items without pending changes.
+ */
+class TxItemSorter implements ItemSorter {
+
+    private final Comparator<Object> propertyValueComparator = new DefaultItemSorter.DefaultPropertyValueComparator();
+    private TransactionalContainerWrapper container;
+    private Object[] sortPropertyIds = new Object[0];
+    private boolean[] sortDirections = new boolean[0];
+
+    @Override
+    public void setSortProperties(Container.Sortable container,
+            Object[] propertyId, boolean[] ascending) {
+        this.container = (TransactionalContainerWrapper) container;
+        // Non-sortable property ids are ignored
+        List<Object> ids = new ArrayList<Object>();
+        List<Boolean> orders = new ArrayList<Boolean>();
+        Collection<?> sortable = container.getSortableContainerPropertyIds();
+        for (int i = 0; i < propertyId.length; i++) {
+            if (sortable.contains(propertyId[i])) {
+                ids.add(propertyId[i]);
+                orders.add(i < ascending.length ? ascending[i] : true);
+            }
+        }
+        sortPropertyIds = ids.toArray();
+        sortDirections = new boolean[orders.size()];
+        for (int i = 0; i < sortDirections.length; i++) {
+            sortDirections[i] = orders.get(i);
+        }
+    }
+
+    @Override
+    public int compare(Object o1, Object o2) {
+        for (int i = 0; i < sortPropertyIds.length; i++) {
+            Object value1 = container.getReadThroughValue(o1, sortPropertyIds[i]);
+            Object value2 = container.getReadThroughValue(o2, sortPropertyIds[i]);
+            int result = sortDirections[i] ? propertyValueComparator.compare(value1, value2)
+                    : propertyValueComparator.compare(value2, value1);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+}
@@ -2,22 +2,60 @@ package org.vaadin.data.tx;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
+import com.vaadin.shared.util.SharedUtil;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectInputValidation;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * TxItemWrapper is an internal class used by TransactionalContainerWrapper to wrap items
  * for allowing transactional commit and rollback.
+ * <p>
+ * Pending values are kept in an array indexed by the property indexes of the container, with a bit set of the
+ * properties having a pending value. Both are allocated on the first modification, so an item which is only read costs
+ * a few fields. Properties are handed out as flyweight {@link TxPropertyWrapper} views.
+ * </p>
+ * <p>
+ * TransactionalContainerWrapper serializes only the wrappers with pending changes or listeners. Other wrappers which
+ * are still referenced, for example by the undo journal, are put back into the container after deserialization.
+ * </p>
  */
 class TxItemWrapper implements Item, TxAware {
-    private Item innerItem;
+    /**
+     * Item of the inner container, or the generated item of a new item. Items of the inner container are not
+     * serialized, but fetched again on first access.
+     */
+    private transient Item innerItem;
     private boolean isNew;
     private Object itemId;
     private final TransactionalContainerWrapper parent;
 
-    private final Map<Object, TxPropertyWrapper<?>> wrapperMap = new LinkedHashMap<Object, TxPropertyWrapper<?>>();
+    /**
+     * Pending values by property index, null until the first modification.
+     */
+    private Object[] pendingValues;
+    /**
+     * Indexes of the properties with a pending value, null until the first modification.
+     */
+    private BitSet pendingProperties;
+    /**
+     * Value change listeners by property index, null until the first listener is added.
+     */
+    private Map<Integer, List<Property.ValueChangeListener>> valueChangeListeners;
+    /**
+     * Version of the inner item when it was wrapped or its changes were last committed or rolled back, null if
+     * versions are not checked.
+     */
+    private Object version;
 
     TxItemWrapper(TransactionalContainerWrapper parent, Item innerItem,
             Object innerItemId, boolean aNew) {
@@ -29,22 +67,30 @@ class TxItemWrapper implements Item, TxAware {
 
     @Override
     public void startTransaction() {
-        for (TxPropertyWrapper<?> propertyWrapper : wrapperMap.values()) {
-            propertyWrapper.startTransaction();
-        }
+        // Nothing to do
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void commit() {
-        for (TxPropertyWrapper<?> propertyWrapper : wrapperMap.values()) {
-            propertyWrapper.commit();
+        if (pendingProperties == null) {
+            return;
+        }
+        for (int i = pendingProperties.nextSetBit(0); i >= 0; i = pendingProperties.nextSetBit(i + 1)) {
+            ((Property<Object>) getInnerProperty(parent.getPropertyIdByIndex(i))).setValue(pendingValues[i]);
         }
+        clearPendingValues();
     }
 
     @Override
     public void rollback() {
-        for (TxPropertyWrapper<?> propertyWrapper : wrapperMap.values()) {
-            propertyWrapper.rollback();
+        if (pendingProperties == null) {
+            return;
+        }
+        BitSet rolledBack = pendingProperties;
+        clearPendingValues();
+        for (int i = rolledBack.nextSetBit(0); i >= 0; i = rolledBack.nextSetBit(i + 1)) {
+            newPropertyWrapper(i, parent.getPropertyIdByIndex(i)).fireValueChange();
         }
     }
 
@@ -67,17 +113,178 @@ class TxItemWrapper implements Item, TxAware {
     }
 
     @Override
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public Property<?> getItemProperty(Object id) {
-        TxPropertyWrapper<?> propertyWrapper = wrapperMap.get(id);
-        if(propertyWrapper == null) {
-            propertyWrapper = new TxPropertyWrapper(
-                    innerItem.getItemProperty(id));
-            propertyWrapper
-                    .addValueChangeListener(parent.propertyValueChangeListener);
-            wrapperMap.put(id, propertyWrapper);
+        if (getInnerItem().getItemProperty(id) == null) {
+            return null;
+        }
+        return newPropertyWrapper(parent.indexOfPropertyId(id), id);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private TxPropertyWrapper<?> newPropertyWrapper(int propertyIndex, Object propertyId) {
+        return new TxPropertyWrapper(this, propertyIndex, propertyId);
+    }
+
+    Property<?> getInnerProperty(Object propertyId) {
+        return getInnerItem().getItemProperty(propertyId);
+    }
+
+    Object getValue(int propertyIndex, Object propertyId) {
+        if (hasPendingValue(propertyIndex)) {
+            return pendingValues[propertyIndex];
+        }
+        return getInnerProperty(propertyId).getValue();
+    }
+
+    /**
+     * @return current value of the property, or null if there is no such property
+     */
+    Object getValue(Object propertyId) {
+        Property<?> innerProperty = getInnerProperty(propertyId);
+        if (innerProperty == null) {
+            return null;
+        }
+        int propertyIndex = parent.indexOfPropertyId(propertyId);
+        return hasPendingValue(propertyIndex) ? pendingValues[propertyIndex] : innerProperty.getValue();
+    }
+
+    boolean hasPendingValue(int propertyIndex) {
+        return pendingProperties != null && pendingProperties.get(propertyIndex);
+    }
+
+    /**
+     * Sets a pending value of a property, notifying the container and the value change listeners if the value
+     * changes.
+     */
+    void setValue(TxPropertyWrapper<?> propertyWrapper, Object newValue) {
+        parent.checkNotCommitting();
+        int propertyIndex = propertyWrapper.getPropertyIndex();
+        if (SharedUtil.equals(newValue, getValue(propertyIndex, propertyWrapper.getPropertyId()))) {
+            return;
         }
-        return propertyWrapper;
+        parent.beforePropertyModified(propertyWrapper);
+        putPendingValue(propertyIndex, newValue);
+        parent.itemModified(this, propertyWrapper.getPropertyId(), newValue);
+        propertyWrapper.fireValueChange();
+    }
+
+    /**
+     * Restores a pending value recorded earlier, firing a value change event if the value changes.
+     */
+    void restorePendingValue(TxPropertyWrapper<?> propertyWrapper, boolean pending, Object value) {
+        int propertyIndex = propertyWrapper.getPropertyIndex();
+        Object oldValue = getValue(propertyIndex, propertyWrapper.getPropertyId());
+        if (pending) {
+            putPendingValue(propertyIndex, value);
+        } else if (pendingProperties != null) {
+            pendingProperties.clear(propertyIndex);
+            pendingValues[propertyIndex] = null;
+        }
+        if (!SharedUtil.equals(oldValue, getValue(propertyIndex, propertyWrapper.getPropertyId()))) {
+            propertyWrapper.fireValueChange();
+        }
+    }
+
+    private void putPendingValue(int propertyIndex, Object value) {
+        if (pendingValues == null) {
+            pendingValues = new Object[Math.max(parent.getPropertyCount(), propertyIndex + 1)];
+            pendingProperties = new BitSet(pendingValues.length);
+        } else if (propertyIndex >= pendingValues.length) {
+            pendingValues = Arrays.copyOf(pendingValues, Math.max(parent.getPropertyCount(), propertyIndex + 1));
+        }
+        pendingValues[propertyIndex] = value;
+        pendingProperties.set(propertyIndex);
+    }
+
+    void addValueChangeListener(int propertyIndex, Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            valueChangeListeners = new HashMap<Integer, List<Property.ValueChangeListener>>();
+        }
+        List<Property.ValueChangeListener> listeners = valueChangeListeners.get(propertyIndex);
+        if (listeners == null) {
+            listeners = new ArrayList<Property.ValueChangeListener>(1);
+            valueChangeListeners.put(propertyIndex, listeners);
+        }
+        listeners.add(listener);
+    }
+
+    void removeValueChangeListener(int propertyIndex, Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            return;
+        }
+        List<Property.ValueChangeListener> listeners = valueChangeListeners.get(propertyIndex);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                valueChangeListeners.remove(propertyIndex);
+            }
+        }
+    }
+
+    /**
+     * @return true if any property has value change listeners
+     */
+    boolean hasValueChangeListeners() {
+        return valueChangeListeners != null && !valueChangeListeners.isEmpty();
+    }
+
+    boolean hasValueChangeListeners(int propertyIndex) {
+        return valueChangeListeners != null && valueChangeListeners.containsKey(propertyIndex);
+    }
+
+    void fireValueChange(int propertyIndex, Property.ValueChangeEvent event) {
+        if (valueChangeListeners == null) {
+            return;
+        }
+        List<Property.ValueChangeListener> listeners = valueChangeListeners.get(propertyIndex);
+        if (listeners != null) {
+            for (Property.ValueChangeListener listener : listeners.toArray(
+                    new Property.ValueChangeListener[listeners.size()])) {
+                listener.valueChange(event);
+            }
+        }
+    }
+
+    /**
+     * Collects pending property values and the corresponding values of the inner item.
+     *
+     * @param pendingValues
+     *         map to put the pending values to by property id
+     * @param innerValues
+     *         map to put the inner item values to by property id
+     */
+    void collectPendingValues(Map<Object, Object> pendingValues,
+            Map<Object, Object> innerValues) {
+        if (pendingProperties == null) {
+            return;
+        }
+        for (int i = pendingProperties.nextSetBit(0); i >= 0; i = pendingProperties.nextSetBit(i + 1)) {
+            Object propertyId = parent.getPropertyIdByIndex(i);
+            pendingValues.put(propertyId, this.pendingValues[i]);
+            innerValues.put(propertyId, getInnerProperty(propertyId).getValue());
+        }
+    }
+
+    /**
+     * @return true if any property has a pending value
+     */
+    boolean hasPendingValues() {
+        return pendingProperties != null && !pendingProperties.isEmpty();
+    }
+
+    /**
+     * @return number of properties with a pending value
+     */
+    int getPendingValueCount() {
+        return pendingProperties == null ? 0 : pendingProperties.cardinality();
+    }
+
+    /**
+     * Drops pending values without applying them, called after the values have been committed by other means.
+     */
+    void clearPendingValues() {
+        pendingValues = null;
+        pendingProperties = null;
     }
 
     public boolean isNew() {
@@ -89,22 +296,47 @@ class TxItemWrapper implements Item, TxAware {
     }
 
     Item getInnerItem() {
+        if (innerItem == null) {
+            innerItem = parent.getInnerItem(itemId);
+        }
         return innerItem;
     }
 
-    @SuppressWarnings("unchecked")
     void setInnerItem(Item innerItem) {
         this.innerItem = innerItem;
-        for (Map.Entry<Object, TxPropertyWrapper<?>> idPropertyEntry : wrapperMap
-                .entrySet()) {
-            TxPropertyWrapper<?> propertyWrapper = idPropertyEntry.getValue();
-            propertyWrapper.replaceInnerProperty(innerItem
-                    .getItemProperty(idPropertyEntry.getKey()));
-            propertyWrapper.reset();
-        }
+        clearPendingValues();
     }
 
     Object getItemId() {
         return itemId;
     }
-}
\ No newline at end of file
+
+    Object getVersion() {
+        return version;
+    }
+
+    void setVersion(Object version) {
+        this.version = version;
+    }
+
+    TransactionalContainerWrapper getParent() {
+        return parent;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(isNew ? innerItem : null);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        innerItem = (Item) in.readObject();
+        // The container is complete only when the whole object graph has been read
+        in.registerValidation(new ObjectInputValidation() {
+            @Override
+            public void validateObject() {
+                parent.adoptItemWrapper(TxItemWrapper.this);
+            }
+        }, 0);
+    }
+}
@@ -0,0 +1,165 @@
+package org.vaadin.data.tx;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+
+/**
+ * TxJournal is an internal bounded undo/redo journal of TransactionalContainerWrapper. Every entry knows how to revert
+ * a single edit, and applying it yields the entry which reverts the revert, so undo and redo just move entries between
+ * two deques. When the journal is full, the oldest entry is dropped.
+ */
+class TxJournal implements Serializable {
+
+    /**
+     * A revertible journal entry.
+     */
+    interface Entry extends Serializable {
+        /**
+         * Reverts the edit.
+         *
+         * @param container
+         *         container to revert the edit in
+         * @return entry reverting this one, or null if the edit could not be reverted
+         */
+        Entry apply(TransactionalContainerWrapper container);
+    }
+
+    /**
+     * Restores the pending value a property had before an edit.
+     */
+    static final class PendingValueEntry implements Entry {
+        private final TxPropertyWrapper<?> propertyWrapper;
+        private final boolean pending;
+        private final Object value;
+
+        PendingValueEntry(TxPropertyWrapper<?> propertyWrapper) {
+            this.propertyWrapper = propertyWrapper;
+            pending = propertyWrapper.hasPendingValue();
+            value = pending ? propertyWrapper.getValue() : null;
+        }
+
+        @Override
+        public Entry apply(TransactionalContainerWrapper container) {
+            Entry inverse = new PendingValueEntry(propertyWrapper);
+            container.restorePendingValue(propertyWrapper, pending, value);
+            return inverse;
+        }
+    }
+
+    /**
+     * Removes an added or restored item.
+     */
+    static final class RemoveItemEntry implements Entry {
+        private final Object itemId;
+
+        RemoveItemEntry(Object itemId) {
+            this.itemId = itemId;
+        }
+
+        @Override
+        public Entry apply(TransactionalContainerWrapper container) {
+            return container.journalRemoveItem(itemId);
+        }
+    }
+
+    /**
+     * Puts a removed item back to its position.
+     */
+    static final class RestoreItemEntry implements Entry {
+        private final Object itemId;
+        private final TxItemWrapper itemWrapper;
+        private final int position;
+        private final boolean dirty;
+
+        RestoreItemEntry(Object itemId, TxItemWrapper itemWrapper, int position, boolean dirty) {
+            this.itemId = itemId;
+            this.itemWrapper = itemWrapper;
+            this.position = position;
+            this.dirty = dirty;
+        }
+
+        @Override
+        public Entry apply(TransactionalContainerWrapper container) {
+            return container.journalRestoreItem(itemId, itemWrapper, position, dirty);
+        }
+    }
+
+    private final ArrayDeque<Entry> undoEntries = new ArrayDeque<Entry>();
+    private final ArrayDeque<Entry> redoEntries = new ArrayDeque<Entry>();
+    private int maxSize;
+
+    TxJournal(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Journal size cannot be negative");
+        }
+        this.maxSize = maxSize;
+        trim(undoEntries);
+        trim(redoEntries);
+    }
+
+    private void trim(ArrayDeque<Entry> entries) {
+        while (entries.size() > maxSize) {
+            entries.pollFirst();
+        }
+    }
+
+    /**
+     * Records a new edit. The redo entries are dropped, as they do not apply after a new edit.
+     */
+    void record(Entry entry) {
+        if (maxSize == 0) {
+            return;
+        }
+        redoEntries.clear();
+        push(undoEntries, entry);
+    }
+
+    private void push(ArrayDeque<Entry> entries, Entry entry) {
+        if (entries.size() == maxSize) {
+            entries.pollFirst();
+        }
+        entries.addLast(entry);
+    }
+
+    boolean canUndo() {
+        return !undoEntries.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    boolean undo(TransactionalContainerWrapper container) {
+        return move(undoEntries, redoEntries, container);
+    }
+
+    boolean redo(TransactionalContainerWrapper container) {
+        return move(redoEntries, undoEntries, container);
+    }
+
+    private boolean move(ArrayDeque<Entry> from, ArrayDeque<Entry> to, TransactionalContainerWrapper container) {
+        Entry entry = from.pollLast();
+        if (entry == null) {
+            return false;
+        }
+        Entry inverse = entry.apply(container);
+        if (inverse == null) {
+            return false;
+        }
+        push(to, inverse);
+        return true;
+    }
+
+    void clear() {
+        undoEntries.clear();
+        redoEntries.clear();
+    }
+}
@@ -0,0 +1,182 @@
+package org.vaadin.data.tx;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * TxMetrics collects the counts and latency histograms of the operations of a TransactionalContainerWrapper, and
+ * provides gauges of its pending changes. It has no dependencies beyond the JDK, and can be registered as a JMX
+ * MBean with {@link #registerMBean(String)}.
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ * TxMetrics metrics = new TxMetrics(wrapper);
+ * wrapper.addMetricsListener(metrics);
+ * metrics.registerMBean("org.vaadin.data.tx:type=TxMetrics,name=orders");
+ * </pre>
+ * <p>
+ * The gauges are counts kept up to date by the wrapper as it is modified while the metrics are added to it, and are
+ * 0 otherwise. They are published through volatile fields, so a JMX client can read them without the session lock.
+ * </p>
+ */
+public class TxMetrics implements TxMetricsListener {
+
+    private final TransactionalContainerWrapper wrapper;
+    private final Map<TxOperation, LatencyHistogram> histograms = new EnumMap<TxOperation, LatencyHistogram>(
+            TxOperation.class);
+    private ObjectName objectName;
+
+    /**
+     * Creates metrics for the given wrapper. The metrics are collected once they have been added to the wrapper with
+     * {@link TransactionalContainerWrapper#addMetricsListener(TxMetricsListener)}.
+     *
+     * @param wrapper
+     *            the wrapper whose pending changes the gauges show
+     */
+    public TxMetrics(TransactionalContainerWrapper wrapper) {
+        this.wrapper = wrapper;
+        for (TxOperation operation : TxOperation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void operationStarted(TransactionalContainerWrapper wrapper, TxOperation operation) {
+        // Durations are reported on completion
+    }
+
+    @Override
+    public void operationCompleted(TransactionalContainerWrapper wrapper, TxOperation operation, int itemCount,
+            long durationNanos) {
+        histograms.get(operation).record(durationNanos);
+    }
+
+    /**
+     * @param operation
+     *            an operation
+     * @return number of times the operation has completed
+     */
+    public long getCount(TxOperation operation) {
+        return histograms.get(operation).getCount();
+    }
+
+    /**
+     * @param operation
+     *            an operation
+     * @return total duration of the operation in nanoseconds
+     */
+    public long getTotalNanos(TxOperation operation) {
+        return histograms.get(operation).getTotalNanos();
+    }
+
+    /**
+     * @param operation
+     *            an operation
+     * @return longest duration of the operation in nanoseconds
+     */
+    public long getMaxNanos(TxOperation operation) {
+        return histograms.get(operation).getMaxNanos();
+    }
+
+    /**
+     * Returns a percentile of the durations of an operation, accurate to about 20 %.
+     *
+     * @param operation
+     *            an operation
+     * @param percentile
+     *            percentile between 0 and 100, for example 99
+     * @return duration in nanoseconds, 0 if the operation has not completed yet
+     */
+    public long getPercentileNanos(TxOperation operation, double percentile) {
+        return histograms.get(operation).getPercentileNanos(percentile);
+    }
+
+    /**
+     * Resets the counts and histograms of all operations.
+     */
+    public void clear() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * @return number of new items
+     */
+    public int getPendingInsertCount() {
+        TxPendingCounts counts = wrapper.getPendingCounts();
+        return counts == null ? 0 : counts.inserts;
+    }
+
+    /**
+     * @return number of existing items with pending property values
+     */
+    public int getPendingUpdateCount() {
+        TxPendingCounts counts = wrapper.getPendingCounts();
+        return counts == null ? 0 : counts.updates;
+    }
+
+    /**
+     * @return number of removed items
+     */
+    public int getPendingDeleteCount() {
+        TxPendingCounts counts = wrapper.getPendingCounts();
+        return counts == null ? 0 : counts.deletes;
+    }
+
+    /**
+     * @return number of pending property values of new and existing items
+     */
+    public int getPendingValueCount() {
+        TxPendingCounts counts = wrapper.getPendingCounts();
+        return counts == null ? 0 : counts.values;
+    }
+
+    /**
+     * @return number of items wrapped so far, see {@link TransactionalContainerWrapper}
+     */
+    public int getWrappedItemCount() {
+        TxPendingCounts counts = wrapper.getPendingCounts();
+        return counts == null ? 0 : counts.wrappedItems;
+    }
+
+    /**
+     * Registers the metrics as an MBean of the platform MBean server. The MBean has the attributes
+     * <code>&lt;Operation&gt;Count</code>, <code>&lt;Operation&gt;MeanMicros</code>,
+     * <code>&lt;Operation&gt;MaxMicros</code> and <code>&lt;Operation&gt;99thPercentileMicros</code> for each
+     * {@link TxOperation}, for example <code>CommitMeanMicros</code>, and the gauges <code>PendingInserts</code>,
+     * <code>PendingUpdates</code>, <code>PendingDeletes</code>, <code>PendingValues</code> and
+     * <code>WrappedItems</code>.
+     *
+     * @param name
+     *            object name of the MBean
+     * @throws JMException
+     *             if the name is malformed or already registered
+     */
+    public void registerMBean(String name) throws JMException {
+        ObjectName newObjectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new TxMetricsMBean(this), newObjectName);
+        objectName = newObjectName;
+    }
+
+    /**
+     * Unregisters the MBean registered with {@link #registerMBean(String)}, typically when the session ends.
+     *
+     * @throws JMException
+     *             if the MBean cannot be unregistered
+     */
+    public void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.vaadin.data.tx;
+
+import java.util.EventListener;
+
+/**
+ * TxMetricsListener is an interface for measuring the operations of a TransactionalContainerWrapper, see
+ * {@link TransactionalContainerWrapper#addMetricsListener(TxMetricsListener)} and {@link TxMetrics}. Listeners are
+ * called synchronously by the thread which ran the operation, so they should be fast.
+ */
+public interface TxMetricsListener extends EventListener {
+
+    /**
+     * This will be called when an operation starts. Operations may nest, for example a reset filters all items, and
+     * an operation which fails with an exception is not completed.
+     *
+     * @param wrapper
+     *            the wrapper running the operation
+     * @param operation
+     *            the operation
+     */
+    void operationStarted(TransactionalContainerWrapper wrapper, TxOperation operation);
+
+    /**
+     * This will be called after an operation has completed.
+     *
+     * @param wrapper
+     *            the wrapper which ran the operation
+     * @param operation
+     *            the operation
+     * @param itemCount
+     *            number of items or listeners the operation worked on, see {@link TxOperation}
+     * @param durationNanos
+     *            duration of the operation in nanoseconds
+     */
+    void operationCompleted(TransactionalContainerWrapper wrapper, TxOperation operation, int itemCount,
+            long durationNanos);
+}
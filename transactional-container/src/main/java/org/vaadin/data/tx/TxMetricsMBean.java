@@ -0,0 +1,148 @@
+package org.vaadin.data.tx;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TxMetricsMBean is an internal read-only MBean exposing {@link TxMetrics}, see {@link TxMetrics#registerMBean(String)}.
+ * The operation attributes are derived from the {@link TxOperation} constants.
+ */
+class TxMetricsMBean implements DynamicMBean {
+
+    private static final String[] GAUGES = {"PendingInserts", "PendingUpdates", "PendingDeletes", "PendingValues",
+            "WrappedItems"};
+    private static final String[] GAUGE_DESCRIPTIONS = {"Number of new items",
+            "Number of existing items with pending values", "Number of removed items",
+            "Number of pending property values", "Number of wrapped items"};
+
+    private final TxMetrics metrics;
+    private final Map<String, TxOperation> operationsByName = new LinkedHashMap<String, TxOperation>();
+
+    TxMetricsMBean(TxMetrics metrics) {
+        this.metrics = metrics;
+        for (TxOperation operation : TxOperation.values()) {
+            operationsByName.put(attributeNameOf(operation), operation);
+        }
+    }
+
+    /**
+     * @return the operation name in camel case, for example RemoveAllItems for REMOVE_ALL_ITEMS
+     */
+    private static String attributeNameOf(TxOperation operation) {
+        StringBuilder name = new StringBuilder();
+        for (String word : operation.name().split("_")) {
+            name.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        }
+        return name.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (int i = 0; i < GAUGES.length; i++) {
+            if (GAUGES[i].equals(attribute)) {
+                return readGauge(i);
+            }
+        }
+        for (Map.Entry<String, TxOperation> nameOperationEntry : operationsByName.entrySet()) {
+            String name = nameOperationEntry.getKey();
+            if (!attribute.startsWith(name)) {
+                continue;
+            }
+            TxOperation operation = nameOperationEntry.getValue();
+            String statistic = attribute.substring(name.length());
+            if ("Count".equals(statistic)) {
+                return metrics.getCount(operation);
+            } else if ("MeanMicros".equals(statistic)) {
+                long count = metrics.getCount(operation);
+                return count == 0 ? 0.0 : metrics.getTotalNanos(operation) / 1000.0 / count;
+            } else if ("MaxMicros".equals(statistic)) {
+                return metrics.getMaxNanos(operation) / 1000.0;
+            } else if ("99thPercentileMicros".equals(statistic)) {
+                return metrics.getPercentileNanos(operation, 99) / 1000.0;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private int readGauge(int gauge) {
+        switch (gauge) {
+        case 0:
+            return metrics.getPendingInsertCount();
+        case 1:
+            return metrics.getPendingUpdateCount();
+        case 2:
+            return metrics.getPendingDeleteCount();
+        case 3:
+            return metrics.getPendingValueCount();
+        default:
+            return metrics.getWrappedItemCount();
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as specified by DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        if ("clear".equals(actionName)) {
+            metrics.clear();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : operationsByName.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name + "Count", "long", "Number of completed operations", true,
+                    false, false));
+            attributes.add(new MBeanAttributeInfo(name + "MeanMicros", "double", "Mean duration", true, false,
+                    false));
+            attributes.add(new MBeanAttributeInfo(name + "MaxMicros", "double", "Longest duration", true, false,
+                    false));
+            attributes.add(new MBeanAttributeInfo(name + "99thPercentileMicros", "double",
+                    "99th percentile of the durations", true, false, false));
+        }
+        for (int i = 0; i < GAUGES.length; i++) {
+            attributes.add(new MBeanAttributeInfo(GAUGES[i], "int", GAUGE_DESCRIPTIONS[i], true, false, false));
+        }
+        MBeanOperationInfo clear = new MBeanOperationInfo("clear", "Resets the counts and histograms", null, "void",
+                MBeanOperationInfo.ACTION);
+        return new MBeanInfo(TxMetrics.class.getName(), "Metrics of a TransactionalContainerWrapper",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[]{clear}, null);
+    }
+}
@@ -0,0 +1,40 @@
+package org.vaadin.data.tx;
+
+/**
+ * Operations of a TransactionalContainerWrapper reported to {@link TxMetricsListener}s.
+ */
+public enum TxOperation {
+    /**
+     * commit() or an asynchronous commit; the item count is the number of inserted, updated and removed items.
+     */
+    COMMIT,
+    /**
+     * rollback() of pending changes; the item count is the number of discarded item changes.
+     */
+    ROLLBACK,
+    /**
+     * reset(); the item count is the number of items after the reset.
+     */
+    RESET,
+    /**
+     * A filter pass over all items, for example after adding or removing a filter; the item count is the number of
+     * filtered items.
+     */
+    FILTER,
+    /**
+     * addItems(); the item count is the number of added items.
+     */
+    ADD_ITEMS,
+    /**
+     * removeItems(); the item count is the number of removed items.
+     */
+    REMOVE_ITEMS,
+    /**
+     * removeAllItems(); the item count is the number of removed items.
+     */
+    REMOVE_ALL_ITEMS,
+    /**
+     * Notification of the {@link TxListener}s of a transaction event; the item count is the number of listeners.
+     */
+    TX_LISTENERS
+}
@@ -0,0 +1,43 @@
+package org.vaadin.data.tx;
+
+/**
+ * TxPendingCounts is an internal set of gauges of the pending changes of a TransactionalContainerWrapper, kept up to
+ * date by the wrapper while it has metrics listeners. The counts are written only by the thread modifying the
+ * wrapper, and are volatile so that a JMX thread can read them without the session lock.
+ */
+final class TxPendingCounts {
+    volatile int inserts;
+    volatile int updates;
+    volatile int deletes;
+    volatile int values;
+    volatile int wrappedItems;
+
+    /**
+     * Adds the contribution of an item to the counts, or subtracts it if the sign is negative.
+     *
+     * @param dirtyItem
+     *         wrapper of the item if it is new or has pending values, otherwise null
+     * @param deleted
+     *         true if the item is removed
+     * @param wrapped
+     *         true if the item has a wrapper
+     * @param sign
+     *         1 to add, -1 to subtract
+     */
+    void add(TxItemWrapper dirtyItem, boolean deleted, boolean wrapped, int sign) {
+        if (dirtyItem != null) {
+            if (dirtyItem.isNew()) {
+                inserts += sign;
+            } else if (dirtyItem.hasPendingValues()) {
+                updates += sign;
+            }
+            values += sign * dirtyItem.getPendingValueCount();
+        }
+        if (deleted) {
+            deletes += sign;
+        }
+        if (wrapped) {
+            wrappedItems += sign;
+        }
+    }
+}
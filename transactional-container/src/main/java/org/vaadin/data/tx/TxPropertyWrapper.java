@@ -1,48 +1,46 @@
 package org.vaadin.data.tx;
 
 import com.vaadin.data.Property;
-import com.vaadin.data.util.AbstractProperty;
-import com.vaadin.shared.util.SharedUtil;
+
+import java.util.EventObject;
 
 /**
- * TxPropertyWrapper is an internal class used by TransactionalContainerWrapper to wrap
- * properties for allowing transactional commit and rollback.
+ * TxPropertyWrapper is an internal flyweight view of a property of a TxItemWrapper. Views are created on demand and
+ * keep no state of their own: the pending value and the value change listeners are kept by the item, so all views of
+ * the same property share them. Views of the same property are equal.
  */
-class TxPropertyWrapper<T> extends AbstractProperty<T> implements
-        Property.ValueChangeNotifier, TxAware {
-
-    private T newValue;
-    private boolean pendingValue;
-    private Property<T> wrappedProperty;
+class TxPropertyWrapper<T> implements Property<T>, Property.ValueChangeNotifier {
 
-    TxPropertyWrapper(Property<T> wrappedProperty) {
-        this.wrappedProperty = wrappedProperty;
-    }
+    /**
+     * Value change event of a property view.
+     */
+    private static class ValueChangeEvent extends EventObject implements
+            Property.ValueChangeEvent {
 
-    @Override
-    public void startTransaction() {
-        // Nothing to do
-    }
+        ValueChangeEvent(Property<?> source) {
+            super(source);
+        }
 
-    @Override
-    public void commit() {
-        if (pendingValue) {
-            wrappedProperty.setValue(newValue);
-            reset();
+        @Override
+        public Property<?> getProperty() {
+            return (Property<?>) getSource();
         }
     }
 
-    @Override
-    public void rollback() {
-        if (pendingValue) {
-            reset();
-            fireValueChange();
-        }
+    private final TxItemWrapper owner;
+    private final int propertyIndex;
+    private final Object propertyId;
+
+    TxPropertyWrapper(TxItemWrapper owner, int propertyIndex, Object propertyId) {
+        this.owner = owner;
+        this.propertyIndex = propertyIndex;
+        this.propertyId = propertyId;
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public T getValue() {
-        return pendingValue ? newValue : wrappedProperty.getValue();
+        return (T) owner.getValue(propertyIndex, propertyId);
     }
 
     @Override
@@ -50,35 +48,99 @@ class TxPropertyWrapper<T> extends AbstractProperty<T> implements
         if (isReadOnly()) {
             throw new Property.ReadOnlyException();
         }
-        if (!SharedUtil.equals(newValue, this.getValue())) {
-            pendingValue = true;
-            this.newValue = newValue;
-            fireValueChange();
-        }
+        owner.setValue(this, newValue);
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public Class<? extends T> getType() {
-        return wrappedProperty.getType();
+        return (Class<? extends T>) owner.getInnerProperty(propertyId).getType();
     }
 
     @Override
     public boolean isReadOnly() {
-        return wrappedProperty.isReadOnly();
+        return owner.getInnerProperty(propertyId).isReadOnly();
     }
 
     @Override
     public void setReadOnly(boolean newStatus) {
-        wrappedProperty.setReadOnly(true);
-        super.setReadOnly(newStatus);
+        owner.getInnerProperty(propertyId).setReadOnly(newStatus);
+    }
+
+    @Override
+    public void addValueChangeListener(ValueChangeListener listener) {
+        owner.addValueChangeListener(propertyIndex, listener);
+    }
+
+    /**
+     * @deprecated As of 7.0, replaced by {@link #addValueChangeListener(ValueChangeListener)}
+     */
+    @Deprecated
+    @Override
+    public void addListener(ValueChangeListener listener) {
+        addValueChangeListener(listener);
+    }
+
+    @Override
+    public void removeValueChangeListener(ValueChangeListener listener) {
+        owner.removeValueChangeListener(propertyIndex, listener);
     }
 
-    void reset() {
-        pendingValue = false;
-        newValue = null;
+    /**
+     * @deprecated As of 7.0, replaced by {@link #removeValueChangeListener(ValueChangeListener)}
+     */
+    @Deprecated
+    @Override
+    public void removeListener(ValueChangeListener listener) {
+        removeValueChangeListener(listener);
+    }
+
+    /**
+     * Notifies the listeners of this property of the item, unless the container holds the event back.
+     */
+    void fireValueChange() {
+        if (owner.hasValueChangeListeners(propertyIndex) && !owner.getParent().suspendValueChange(this)) {
+            owner.fireValueChange(propertyIndex, new ValueChangeEvent(this));
+        }
+    }
+
+    TxItemWrapper getOwner() {
+        return owner;
+    }
+
+    int getPropertyIndex() {
+        return propertyIndex;
+    }
+
+    boolean hasPendingValue() {
+        return owner.hasPendingValue(propertyIndex);
     }
 
-    void replaceInnerProperty(Property<T> itemProperty) {
-        wrappedProperty = itemProperty;
+    /**
+     * Restores a pending value recorded earlier, firing a value change event if the value changes.
+     */
+    void restorePendingValue(boolean pending, Object value) {
+        owner.restorePendingValue(this, pending, value);
+    }
+
+    Object getPropertyId() {
+        return propertyId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TxPropertyWrapper)) {
+            return false;
+        }
+        TxPropertyWrapper<?> that = (TxPropertyWrapper<?>) o;
+        return owner == that.owner && propertyIndex == that.propertyIndex;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(owner) + propertyIndex;
     }
-}
\ No newline at end of file
+}
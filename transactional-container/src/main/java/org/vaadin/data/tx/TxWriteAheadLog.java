@@ -0,0 +1,501 @@
+package org.vaadin.data.tx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * TxWriteAheadLog records the pending changes of a {@link TransactionalContainerWrapper} in a memory-mapped file, so
+ * that a transaction can be rebuilt with {@link TransactionalContainerWrapper#recover(TxWriteAheadLog)} after the
+ * node running the session has died. See {@link TransactionalContainerWrapper#setWriteAheadLog(TxWriteAheadLog)}.
+ * <p>
+ * Property edits, item additions and removals are appended as compact binary records: common value types take a tag
+ * byte and a few bytes of data, other values are written with Java serialization. An append writes to the mapped
+ * memory only, so it survives the death of the JVM but not of the operating system unless {@link #force()} has been
+ * called. A record becomes part of the log only when its length is written after its data, so a record torn by a
+ * crash is ignored. Undo and redo append the record of the reverting edit. Operations which change many items at
+ * once, like rollbacks to a savepoint, append a single checkpoint record with all the pending changes instead;
+ * recovery starts from the latest checkpoint.
+ * </p>
+ * <p>
+ * The log is not thread-safe, it is meant to be used by a single wrapper while holding the session lock. Each
+ * session should use a file of its own.
+ * </p>
+ */
+public final class TxWriteAheadLog implements Closeable {
+
+    /**
+     * Operations of a pending transaction, called when the log is replayed.
+     */
+    interface Operations {
+        void addItem(Object itemId, Object previousItemId);
+
+        void removeItem(Object itemId);
+
+        void restoreItem(Object itemId, Object previousItemId);
+
+        void removeAllItems();
+
+        void setValue(Object itemId, Object propertyId, Object value);
+
+        void clearValue(Object itemId, Object propertyId);
+    }
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    /**
+     * Size of the length preceding the data of each record.
+     */
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Record types.
+     */
+    private static final byte ADD_ITEM = 1;
+    private static final byte REMOVE_ITEM = 2;
+    private static final byte REMOVE_ALL_ITEMS = 3;
+    private static final byte SET_VALUE = 4;
+    private static final byte CHECKPOINT = 5;
+    private static final byte RESTORE_ITEM = 6;
+    private static final byte CLEAR_VALUE = 7;
+
+    /**
+     * Value tags.
+     */
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FALSE = 5;
+    private static final byte TRUE = 6;
+    private static final byte DATE = 7;
+    private static final byte ENUM = 8;
+    private static final byte SERIALIZED = 9;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Buffer exposing its array, so that a record is copied to the mapped memory without an intermediate copy.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    /**
+     * End of the last complete record.
+     */
+    private int end;
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    /**
+     * Opens a log file, creating it if it does not exist. The records of an existing file are kept, so that they
+     * can be recovered.
+     *
+     * @param file
+     *         the log file
+     * @throws IOException
+     *         if the file cannot be opened or mapped
+     */
+    public TxWriteAheadLog(File file) throws IOException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long capacity = Math.max(INITIAL_CAPACITY, channel.size());
+        if (capacity > Integer.MAX_VALUE) {
+            close();
+            throw new IOException("Write-ahead log " + file + " is too large");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        while (end + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || length > buffer.capacity() - end - HEADER_SIZE) {
+                break;
+            }
+            end += HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if the log has no records
+     */
+    public boolean isEmpty() {
+        return end == 0;
+    }
+
+    /**
+     * @return number of bytes used by the records
+     */
+    public int getSize() {
+        return end;
+    }
+
+    /**
+     * Drops all records. Called by the wrapper when its transaction ends.
+     */
+    public void clear() {
+        buffer.putInt(0, 0);
+        end = 0;
+    }
+
+    /**
+     * Writes the records to the storage device, so that they survive a crash of the operating system as well.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes the file. The records are kept in the file until it is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    void itemAdded(Object itemId, Object previousItemId) {
+        try {
+            startRecord(ADD_ITEM);
+            writeValue(itemId);
+            writeValue(previousItemId);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    /**
+     * Appends a single record adding an item with the given property values.
+     */
+    void itemAdded(Object itemId, Object previousItemId, Map<Object, Object> values) {
+        try {
+            startRecord(ADD_ITEM);
+            writeValue(itemId);
+            writeValue(previousItemId);
+            writeValues(itemId, values);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    /**
+     * Appends a record putting a removed item back after the given item.
+     */
+    void itemRestored(Object itemId, Object previousItemId) {
+        try {
+            startRecord(RESTORE_ITEM);
+            writeValue(itemId);
+            writeValue(previousItemId);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    void itemRemoved(Object itemId) {
+        try {
+            startRecord(REMOVE_ITEM);
+            writeValue(itemId);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    void allItemsRemoved() {
+        try {
+            startRecord(REMOVE_ALL_ITEMS);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    void valueChanged(Object itemId, Object propertyId, Object value) {
+        try {
+            startRecord(SET_VALUE);
+            writeValue(itemId);
+            writeValue(propertyId);
+            writeValue(value);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    /**
+     * Appends a record dropping the pending value of a property.
+     */
+    void valueCleared(Object itemId, Object propertyId) {
+        try {
+            startRecord(CLEAR_VALUE);
+            writeValue(itemId);
+            writeValue(propertyId);
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    /**
+     * Appends a single record with all the given changes, which replaces the earlier records on replay. The log is
+     * cleared if there are no changes.
+     */
+    void checkpoint(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            clear();
+            return;
+        }
+        try {
+            startRecord(CHECKPOINT);
+            for (Object deletedItemId : changes.getDeletedItemIds()) {
+                recordOut.writeByte(REMOVE_ITEM);
+                writeValue(deletedItemId);
+            }
+            for (ChangeSet.InsertedItem insertedItem : changes.getInsertedItems()) {
+                recordOut.writeByte(ADD_ITEM);
+                writeValue(insertedItem.getItemId());
+                writeValue(insertedItem.getPreviousItemId());
+                writeValues(insertedItem.getItemId(), insertedItem.getValues());
+            }
+            for (ChangeSet.UpdatedItem updatedItem : changes.getUpdatedItems()) {
+                writeValues(updatedItem.getItemId(), updatedItem.getValues());
+            }
+            appendRecord();
+        } catch (IOException e) {
+            throw new RuntimeException("Writing to the write-ahead log failed", e);
+        }
+    }
+
+    private void writeValues(Object itemId, Map<Object, Object> values) throws IOException {
+        // Null values are written as well, a pending change to null must survive a checkpoint
+        for (Map.Entry<Object, Object> propertyValueEntry : values.entrySet()) {
+            recordOut.writeByte(SET_VALUE);
+            writeValue(itemId);
+            writeValue(propertyValueEntry.getKey());
+            writeValue(propertyValueEntry.getValue());
+        }
+    }
+
+    /**
+     * Replays the records from the latest checkpoint on.
+     *
+     * @param operations
+     *         operations the records are replayed to
+     */
+    void replay(Operations operations) {
+        int start = 0;
+        for (int offset = 0; offset < end; offset += HEADER_SIZE + buffer.getInt(offset)) {
+            if (buffer.get(offset + HEADER_SIZE) == CHECKPOINT) {
+                start = offset;
+            }
+        }
+        ByteBuffer records = buffer.duplicate();
+        for (int offset = start; offset < end; ) {
+            byte[] data = new byte[buffer.getInt(offset)];
+            records.position(offset + HEADER_SIZE);
+            records.get(data);
+            offset += HEADER_SIZE + data.length;
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                byte type = in.readByte();
+                if (type != CHECKPOINT) {
+                    replayOperation(type, in, operations);
+                }
+                // A checkpoint or an added item is followed by further operations
+                while (in.available() > 0) {
+                    replayOperation(in.readByte(), in, operations);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Reading the write-ahead log failed", e);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException("Reading the write-ahead log failed", e);
+            }
+        }
+    }
+
+    private static void replayOperation(byte type, DataInputStream in, Operations operations)
+            throws IOException, ClassNotFoundException {
+        switch (type) {
+        case ADD_ITEM:
+            operations.addItem(readValue(in), readValue(in));
+            break;
+        case REMOVE_ITEM:
+            operations.removeItem(readValue(in));
+            break;
+        case RESTORE_ITEM:
+            operations.restoreItem(readValue(in), readValue(in));
+            break;
+        case REMOVE_ALL_ITEMS:
+            operations.removeAllItems();
+            break;
+        case SET_VALUE:
+            operations.setValue(readValue(in), readValue(in), readValue(in));
+            break;
+        case CLEAR_VALUE:
+            operations.clearValue(readValue(in), readValue(in));
+            break;
+        default:
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private void startRecord(byte type) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+    }
+
+    /**
+     * Copies the record to the mapped memory, followed by an empty header ending the log, and only then writes the
+     * length of the record over the previous end.
+     */
+    private void appendRecord() throws IOException {
+        int length = record.size();
+        ensureCapacity(HEADER_SIZE + length + HEADER_SIZE);
+        ByteBuffer records = buffer.duplicate();
+        records.position(end + HEADER_SIZE);
+        records.put(record.bytes(), 0, length);
+        buffer.putInt(end + HEADER_SIZE + length, 0);
+        buffer.putInt(end, length);
+        end += HEADER_SIZE + length;
+    }
+
+    private void ensureCapacity(int recordSize) throws IOException {
+        if ((long) end + recordSize <= buffer.capacity()) {
+            return;
+        }
+        long capacity = Math.max(2L * buffer.capacity(), (long) end + recordSize);
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Write-ahead log " + file + " is full");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            recordOut.writeByte(NULL);
+        } else if (value instanceof String) {
+            recordOut.writeByte(STRING);
+            writeBytes(((String) value).getBytes(UTF8));
+        } else if (value instanceof Integer) {
+            recordOut.writeByte(INTEGER);
+            writeVarLong((Integer) value);
+        } else if (value instanceof Long) {
+            recordOut.writeByte(LONG);
+            writeVarLong((Long) value);
+        } else if (value instanceof Double) {
+            recordOut.writeByte(DOUBLE);
+            recordOut.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            recordOut.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value.getClass() == Date.class) {
+            recordOut.writeByte(DATE);
+            writeVarLong(((Date) value).getTime());
+        } else if (value instanceof Enum) {
+            recordOut.writeByte(ENUM);
+            writeBytes(((Enum<?>) value).getDeclaringClass().getName().getBytes(UTF8));
+            writeVarLong(((Enum<?>) value).ordinal());
+        } else {
+            recordOut.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            writeBytes(bytes.toByteArray());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return new String(readBytes(in), UTF8);
+        case INTEGER:
+            return (int) readVarLong(in);
+        case LONG:
+            return readVarLong(in);
+        case DOUBLE:
+            return in.readDouble();
+        case FALSE:
+            return Boolean.FALSE;
+        case TRUE:
+            return Boolean.TRUE;
+        case DATE:
+            return new Date(readVarLong(in));
+        case ENUM:
+            Class<?> enumClass = Class.forName(new String(readBytes(in), UTF8), false,
+                    TxWriteAheadLog.class.getClassLoader());
+            return enumClass.getEnumConstants()[(int) readVarLong(in)];
+        case SERIALIZED:
+            return new ObjectInputStream(new ByteArrayInputStream(readBytes(in))).readObject();
+        default:
+            throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        writeVarLong(bytes.length);
+        recordOut.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a number in 7 bit groups, zigzag encoded so that small negative numbers take few bytes as well.
+     */
+    private void writeVarLong(long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            recordOut.writeByte((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        recordOut.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new EOFException("Malformed number in the write-ahead log");
+    }
+}
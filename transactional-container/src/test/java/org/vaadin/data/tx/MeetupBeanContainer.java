@@ -25,7 +25,7 @@ import com.vaadin.data.util.BeanItem;
  *
  * @author Vaadin Ltd
  */
-class MeetupBeanContainer extends BeanContainer<Long, Meetup> implements ItemGenerator {
+public class MeetupBeanContainer extends BeanContainer<Long, Meetup> implements ItemGenerator {
 
     public MeetupBeanContainer() {
         super(Meetup.class);
@@ -15,19 +15,43 @@
  */
 package org.vaadin.data.tx;
 
+import com.vaadin.data.Container;
+import com.vaadin.data.Item;
 import com.vaadin.data.Property;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.Not;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  * Tests for basic operations
@@ -185,6 +209,1461 @@ public class TestTxOperations {
 
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommitOfSparseChanges() {
+        Object modifiedItemId = transactionalContainer.getIdByIndex(2);
+        Object removedItemId = transactionalContainer.getIdByIndex(3);
+        ((Property<String>) transactionalContainer.getContainerProperty(modifiedItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(removedItemId);
+        Object lastNewItemId = transactionalContainer.addItemAfter(transactionalContainer.lastItemId());
+        Object firstNewItemId = transactionalContainer.addItemAt(0);
+
+        transactionalContainer.commit();
+
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+        assertEquals(0, countingListener.valueChangeCount);
+        assertEquals(OLD_ITEM_DESCRIPTION, backedContainer.getContainerProperty(modifiedItemId, TEST_PROPERTY_ID).getValue());
+        assertNull(backedContainer.getItem(removedItemId));
+        assertEquals(firstNewItemId, backedContainer.firstItemId());
+        assertEquals(lastNewItemId, backedContainer.lastItemId());
+
+        // Nothing is pending after the commit
+        transactionalContainer.rollback();
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+        assertEquals(0, txCountingListener.rollbackCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommitTarget() {
+        final List<ChangeSet> appliedChanges = new ArrayList<ChangeSet>();
+        final CommitTarget defaultTarget = transactionalContainer.getCommitTarget();
+        transactionalContainer.setCommitTarget(new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+                appliedChanges.add(changes);
+                defaultTarget.applyChanges(changes);
+            }
+        });
+        Object modifiedItemId = transactionalContainer.getIdByIndex(1);
+        ((Property<String>) transactionalContainer.getContainerProperty(modifiedItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        Object removedItemId = transactionalContainer.getIdByIndex(2);
+        transactionalContainer.removeItem(removedItemId);
+        transactionalContainer.addItems(0, Arrays.asList(1000L, 1001L));
+
+        transactionalContainer.commit();
+
+        assertEquals(1, appliedChanges.size());
+        ChangeSet changes = appliedChanges.get(0);
+        assertEquals(Arrays.asList(removedItemId), changes.getDeletedItemIds());
+        assertEquals(1, changes.getUpdatedItems().size());
+        assertEquals(modifiedItemId, changes.getUpdatedItems().get(0).getItemId());
+        assertEquals(Collections.singletonMap(TEST_PROPERTY_ID, OLD_ITEM_DESCRIPTION),
+                changes.getUpdatedItems().get(0).getValues());
+        assertEquals(2, changes.getInsertedItems().size());
+        assertNull(changes.getInsertedItems().get(0).getPreviousItemId());
+        assertEquals(1000L, changes.getInsertedItems().get(1).getPreviousItemId());
+        assertEquals(1, changes.getInsertedItems().get(1).getIndex());
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPendingChanges() {
+        assertTrue(transactionalContainer.getPendingChanges().isEmpty());
+
+        Object modifiedItemId = transactionalContainer.getIdByIndex(0);
+        Object oldDescription = fullContainer.getContainerProperty(modifiedItemId, TEST_PROPERTY_ID).getValue();
+        ((Property<String>) transactionalContainer.getContainerProperty(modifiedItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        Object newItemId = transactionalContainer.addItemAt(3);
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        Object removedItemId = transactionalContainer.getIdByIndex(4);
+        transactionalContainer.removeItem(removedItemId);
+
+        ChangeSet changes = transactionalContainer.getPendingChanges();
+
+        assertEquals(1, changes.getUpdatedItems().size());
+        ChangeSet.UpdatedItem updatedItem = changes.getUpdatedItems().get(0);
+        assertEquals(Collections.singletonMap(TEST_PROPERTY_ID, OLD_ITEM_DESCRIPTION), updatedItem.getValues());
+        assertEquals(Collections.singletonMap(TEST_PROPERTY_ID, oldDescription), updatedItem.getOldValues());
+        assertEquals(1, changes.getInsertedItems().size());
+        ChangeSet.InsertedItem insertedItem = changes.getInsertedItems().get(0);
+        assertEquals(newItemId, insertedItem.getItemId());
+        assertEquals(3, insertedItem.getIndex());
+        assertEquals(fullContainer.getIdByIndex(2), insertedItem.getPreviousItemId());
+        assertEquals(NEW_ITEM_DESCRIPTION, insertedItem.getValues().get(TEST_PROPERTY_ID));
+        assertEquals(Arrays.asList(removedItemId), changes.getDeletedItemIds());
+        try {
+            changes.getDeletedItemIds().clear();
+            fail("Change set must be immutable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+
+        transactionalContainer.rollback();
+        assertTrue(transactionalContainer.getPendingChanges().isEmpty());
+        assertEquals(1, changes.getUpdatedItems().size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testIncrementalRollback() {
+        Object firstItemId = transactionalContainer.getIdByIndex(0);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(transactionalContainer.getIdByIndex(3));
+        transactionalContainer.removeItem(transactionalContainer.getIdByIndex(1));
+        transactionalContainer.addItemAt(1);
+        transactionalContainer.removeItem(transactionalContainer.getIdByIndex(2));
+        assertEquals(fullContainer.size() - 2, transactionalContainer.size());
+        int itemSetChangeCount = txCountingListener.itemsetChangeCount;
+        txCountingListener.itemsetChanges.clear();
+
+        transactionalContainer.rollback();
+
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+        // The new item is removed and the removed items are put back as one range
+        assertEquals(Arrays.asList("remove 1+1", "add 1+3"), txCountingListener.itemsetChanges);
+        assertEquals(2, txCountingListener.valueChangeCount);
+        assertEquals(1, txCountingListener.rollbackCount);
+
+        // Value-only rollback does not change the item set
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.rollback();
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+        assertEquals(itemSetChangeCount + 2, txCountingListener.itemsetChangeCount);
+        assertEquals(0, countingListener.itemsetChangeCount);
+        assertEquals(0, countingListener.valueChangeCount);
+    }
+
+    @Test
+    public void testRemoveItems() {
+        Object newItemId = transactionalContainer.addItemAt(2);
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, "M -2", false, true);
+        int itemSetChangeCount = txCountingListener.itemsetChangeCount;
+
+        assertTrue(transactionalContainer.removeItems(Arrays.asList(
+                fullContainer.getIdByIndex(0), fullContainer.getIdByIndex(3), newItemId, "unknown")));
+
+        assertEquals(itemSetChangeCount + 1, txCountingListener.itemsetChangeCount);
+        assertEquals(2, transactionalContainer.size());
+        transactionalContainer.removeAllContainerFilters();
+        assertEquals(fullContainer.size() - 2, transactionalContainer.size());
+        assertFalse(transactionalContainer.removeItems(Arrays.asList(newItemId)));
+
+        transactionalContainer.commit();
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+        assertEquals(fullContainer.size() - 2, backedContainer.size());
+    }
+
+    @Test
+    public void testAddItems() {
+        Object previousItemId = fullContainer.getIdByIndex(1);
+        assertEquals(3, transactionalContainer.addItems(2, Arrays.asList(1000L, 1001L, 1001L, null, 1002L)));
+        assertEquals(1, txCountingListener.itemsetChangeCount);
+        assertEquals(1, txCountingListener.startCount);
+        assertEquals(fullContainer.size() + 3, transactionalContainer.size());
+        assertEquals(1000L, transactionalContainer.nextItemId(previousItemId));
+        assertEquals(1002L, transactionalContainer.getIdByIndex(4));
+        assertEquals(0, transactionalContainer.addItems(0, Arrays.asList(previousItemId)));
+
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, "M -2", false, true);
+        int itemSetChangeCount = txCountingListener.itemsetChangeCount;
+        assertEquals(2, transactionalContainer.addItemsAfter(null, Arrays.asList(1003L, 1004L)));
+        assertEquals(itemSetChangeCount, txCountingListener.itemsetChangeCount);
+        transactionalContainer.removeAllContainerFilters();
+        assertEquals(1004L, transactionalContainer.getIdByIndex(1));
+
+        transactionalContainer.commit();
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testModificationOfFilteredItems() {
+        Property<String> unfilteredProperty = (Property<String>) transactionalContainer
+                .getContainerProperty(transactionalContainer.getIdByIndex(1), TEST_PROPERTY_ID);
+        unfilteredProperty.setValue(OLD_ITEM_DESCRIPTION);
+        assertEquals(0, txCountingListener.itemsetChangeCount);
+
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, "M -2", false, true);
+        assertEquals(3, transactionalContainer.size());
+        int itemSetChangeCount = txCountingListener.itemsetChangeCount;
+
+        Object filteredItemId = transactionalContainer.getIdByIndex(1);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(filteredItemId, TEST_PROPERTY_ID);
+        property.setValue("M -2 changed");
+        assertEquals(itemSetChangeCount, txCountingListener.itemsetChangeCount);
+
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        assertEquals(itemSetChangeCount + 1, txCountingListener.itemsetChangeCount);
+        assertEquals(2, transactionalContainer.size());
+        assertNull(transactionalContainer.getItem(filteredItemId));
+
+        property.setValue("M -2 again");
+        assertEquals(itemSetChangeCount + 2, txCountingListener.itemsetChangeCount);
+        assertEquals(filteredItemId, transactionalContainer.getIdByIndex(1));
+
+        transactionalContainer.removeAllContainerFilters();
+        transactionalContainer.rollback();
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+    }
+
+    @Test
+    public void testItemWrappersAreKept() {
+        Object itemId = transactionalContainer.getIdByIndex(4);
+        Item item = transactionalContainer.getItem(itemId);
+        assertSame(item, transactionalContainer.getItem(itemId));
+
+        transactionalContainer.removeItem(itemId);
+        transactionalContainer.removeItem(transactionalContainer.getIdByIndex(1));
+        transactionalContainer.rollback();
+        assertSame(item, transactionalContainer.getItem(itemId));
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+
+        transactionalContainer.addItemAfter(itemId);
+        transactionalContainer.commit();
+        assertSame(item, transactionalContainer.getItem(itemId));
+        ContainerTestUtils.compareContainers(backedContainer, transactionalContainer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSavepoints() {
+        Object firstItemId = transactionalContainer.getIdByIndex(0);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        Savepoint savepoint = transactionalContainer.setSavepoint();
+
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        Object removedItemId = transactionalContainer.getIdByIndex(2);
+        transactionalContainer.removeItem(removedItemId);
+        transactionalContainer.removeItems(Arrays.asList(transactionalContainer.getIdByIndex(0),
+                transactionalContainer.getIdByIndex(3)));
+        Object newItemId = transactionalContainer.addItemAt(1);
+        Savepoint laterSavepoint = transactionalContainer.setSavepoint();
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{false});
+
+        transactionalContainer.rollbackToSavepoint(savepoint);
+        assertEquals(OLD_ITEM_DESCRIPTION, property.getValue());
+        assertEquals(fullContainer.size(), transactionalContainer.size());
+        assertEquals(removedItemId, transactionalContainer.getIdByIndex(2));
+        assertFalse(transactionalContainer.containsId(newItemId));
+        try {
+            transactionalContainer.rollbackToSavepoint(laterSavepoint);
+            fail("Later savepoint must be released");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        ChangeSet changes = transactionalContainer.getPendingChanges();
+        assertTrue(changes.getInsertedItems().isEmpty());
+        assertTrue(changes.getDeletedItemIds().isEmpty());
+        assertEquals(1, changes.getUpdatedItems().size());
+        assertEquals(Collections.singletonMap(TEST_PROPERTY_ID, OLD_ITEM_DESCRIPTION),
+                changes.getUpdatedItems().get(0).getValues());
+
+        transactionalContainer.removeItem(removedItemId);
+        transactionalContainer.commit();
+        assertEquals(OLD_ITEM_DESCRIPTION, backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        assertFalse(backedContainer.containsId(removedItemId));
+        ContainerTestUtils.compareContainers(backedContainer, transactionalContainer);
+        try {
+            transactionalContainer.rollbackToSavepoint(savepoint);
+            fail("Savepoint must be released on commit");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReleaseSavepoint() {
+        Savepoint savepoint = transactionalContainer.setSavepoint();
+        Object newItemId = transactionalContainer.addItemAt(0);
+        Savepoint releasedSavepoint = transactionalContainer.setSavepoint();
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(transactionalContainer.lastItemId());
+
+        transactionalContainer.releaseSavepoint(releasedSavepoint);
+        assertEquals(fullContainer.size(), transactionalContainer.size());
+        assertEquals(NEW_ITEM_DESCRIPTION,
+                transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID).getValue());
+
+        txCountingListener.itemsetChanges.clear();
+        transactionalContainer.rollbackToSavepoint(savepoint);
+        assertEquals(Arrays.asList("remove 0+1", "add 4+1"), txCountingListener.itemsetChanges);
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+        assertTrue(transactionalContainer.getPendingChanges().isEmpty());
+
+        // The savepoint is still valid after the rollback
+        transactionalContainer.removeItem(transactionalContainer.firstItemId());
+        transactionalContainer.rollbackToSavepoint(savepoint);
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testUndoRedo() {
+        Object firstItemId = transactionalContainer.getIdByIndex(0);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        Object oldValue = property.getValue();
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        Object removedItemId = transactionalContainer.getIdByIndex(2);
+        transactionalContainer.removeItem(removedItemId);
+        Object newItemId = transactionalContainer.addItemAt(1);
+        assertFalse(transactionalContainer.canRedo());
+
+        int itemSetChangeCount = txCountingListener.itemsetChangeCount;
+        int valueChangeCount = txCountingListener.valueChangeCount;
+        assertTrue(transactionalContainer.undo());
+        assertFalse(transactionalContainer.containsId(newItemId));
+        assertTrue(transactionalContainer.undo());
+        assertEquals(removedItemId, transactionalContainer.getIdByIndex(2));
+        assertEquals(itemSetChangeCount + 2, txCountingListener.itemsetChangeCount);
+        assertTrue(transactionalContainer.undo());
+        assertEquals(NEW_ITEM_DESCRIPTION, property.getValue());
+        assertEquals(valueChangeCount + 1, txCountingListener.valueChangeCount);
+        assertTrue(transactionalContainer.undo());
+        assertEquals(oldValue, property.getValue());
+        assertFalse(transactionalContainer.canUndo());
+        assertFalse(transactionalContainer.undo());
+        assertTrue(transactionalContainer.getPendingChanges().isEmpty());
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+
+        while (transactionalContainer.redo()) {
+            // redo all
+        }
+        assertEquals(OLD_ITEM_DESCRIPTION, property.getValue());
+        assertFalse(transactionalContainer.containsId(removedItemId));
+        assertEquals(newItemId, transactionalContainer.getIdByIndex(1));
+
+        transactionalContainer.commit();
+        assertFalse(transactionalContainer.canUndo());
+        ContainerTestUtils.compareContainers(backedContainer, transactionalContainer);
+        assertEquals(OLD_ITEM_DESCRIPTION, backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        assertFalse(backedContainer.containsId(removedItemId));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testJournalSize() {
+        transactionalContainer.setJournalSize(2);
+        Property<String> property = (Property<String>) transactionalContainer.getContainerProperty(
+                transactionalContainer.firstItemId(), TEST_PROPERTY_ID);
+        property.setValue("1");
+        property.setValue("2");
+        property.setValue("3");
+        assertTrue(transactionalContainer.undo());
+        assertTrue(transactionalContainer.undo());
+        assertFalse(transactionalContainer.undo());
+        assertEquals("1", property.getValue());
+
+        transactionalContainer.setJournalSize(0);
+        property.setValue("4");
+        assertFalse(transactionalContainer.canUndo());
+        assertFalse(transactionalContainer.canRedo());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPropertyViewsShareState() {
+        Object itemId = transactionalContainer.getIdByIndex(1);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(itemId, TEST_PROPERTY_ID);
+        Property<String> otherView = (Property<String>) transactionalContainer.getItem(itemId)
+                .getItemProperty(TEST_PROPERTY_ID);
+        assertEquals(property, otherView);
+        UniversalCountingListener listener = new UniversalCountingListener();
+        ((Property.ValueChangeNotifier) property).addValueChangeListener(listener);
+
+        otherView.setValue(NEW_ITEM_DESCRIPTION);
+        assertEquals(NEW_ITEM_DESCRIPTION, property.getValue());
+        assertEquals(1, listener.valueChangeCount);
+
+        ((Property.ValueChangeNotifier) transactionalContainer.getContainerProperty(itemId, TEST_PROPERTY_ID))
+                .removeValueChangeListener(listener);
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        assertEquals(1, listener.valueChangeCount);
+        assertNull(transactionalContainer.getContainerProperty(itemId, "noSuchProperty"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFilterAndSortReadPendingValues() {
+        Object lastItemId = transactionalContainer.lastItemId();
+        ((Property<String>) transactionalContainer.getContainerProperty(lastItemId, TEST_PROPERTY_ID))
+                .setValue("A first");
+
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{true});
+        assertEquals(lastItemId, transactionalContainer.firstItemId());
+
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, "M -2", false, true);
+        assertEquals(2, transactionalContainer.size());
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{false});
+        transactionalContainer.removeAllContainerFilters();
+        // Items hidden by the filter are sorted as well
+        assertEquals(lastItemId, transactionalContainer.lastItemId());
+        assertEquals("M 2", transactionalContainer.getContainerProperty(
+                transactionalContainer.firstItemId(), TEST_PROPERTY_ID).getValue());
+    }
+
+    @Test
+    public void testIndexedItemSetChangeEvents() {
+        List<String> events = txCountingListener.itemsetChanges;
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(1));
+        assertEquals(Arrays.asList("remove 1+1"), events);
+
+        events.clear();
+        transactionalContainer.removeItems(Arrays.asList(
+                fullContainer.getIdByIndex(0), fullContainer.getIdByIndex(3), fullContainer.getIdByIndex(4)));
+        assertEquals(Arrays.asList("remove 0+1", "remove 1+2"), events);
+
+        transactionalContainer.addItemAt(0);
+        events.clear();
+        transactionalContainer.rollback();
+        assertEquals(Arrays.asList("remove 0+1", "add 0+2", "add 3+2"), events);
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+
+        // Only visible items are notified
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, "M -2", false, true);
+        events.clear();
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(0));
+        assertTrue(events.isEmpty());
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(3));
+        assertEquals(Arrays.asList("remove 1+1"), events);
+
+        events.clear();
+        transactionalContainer.rollback();
+        assertEquals(Arrays.asList("add 1+1"), events);
+
+        events.clear();
+        transactionalContainer.removeAllItems();
+        assertEquals(Arrays.asList("remove 0+3"), events);
+
+        events.clear();
+        transactionalContainer.rollback();
+        assertEquals(Arrays.asList("add 0+3"), events);
+        transactionalContainer.removeAllContainerFilters();
+
+        // Changes scattered over many ranges are notified with a single generic event
+        List<Object> newItemIds = new ArrayList<Object>();
+        for (long id = 1000; id < 1040; id++) {
+            newItemIds.add(id);
+        }
+        transactionalContainer.addItems(0, newItemIds);
+        List<Object> everyOtherItemId = new ArrayList<Object>();
+        for (int i = 0; i < newItemIds.size(); i += 2) {
+            everyOtherItemId.add(newItemIds.get(i));
+        }
+        events.clear();
+        transactionalContainer.removeItems(everyOtherItemId);
+        assertEquals(Arrays.asList("change"), events);
+
+        // So is sorting
+        events.clear();
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{false});
+        assertEquals(Arrays.asList("change"), events);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSuspendNotifications() {
+        Property<String> property = (Property<String>) transactionalContainer.getContainerProperty(
+                fullContainer.getIdByIndex(0), TEST_PROPERTY_ID);
+        transactionalContainer.suspendNotifications();
+        transactionalContainer.suspendNotifications();
+        assertTrue(transactionalContainer.isNotificationsSuspended());
+        for (int i = 0; i < 3; i++) {
+            property.setValue(NEW_ITEM_DESCRIPTION + i);
+        }
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(1));
+        transactionalContainer.addItemAt(0);
+        transactionalContainer.resumeNotifications();
+        assertEquals(0, txCountingListener.valueChangeCount);
+        assertEquals(0, txCountingListener.itemsetChangeCount);
+        // The transaction events are not held back
+        assertEquals(1, txCountingListener.startCount);
+
+        transactionalContainer.resumeNotifications();
+        assertFalse(transactionalContainer.isNotificationsSuspended());
+        assertEquals(1, txCountingListener.valueChangeCount);
+        assertEquals(Arrays.asList("change"), txCountingListener.itemsetChanges);
+
+        // Nothing is fired if nothing changed
+        transactionalContainer.suspendNotifications();
+        transactionalContainer.resumeNotifications();
+        assertEquals(1, txCountingListener.valueChangeCount);
+        assertEquals(1, txCountingListener.itemsetChangeCount);
+
+        try {
+            transactionalContainer.resumeNotifications();
+            fail("Resuming without suspending should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testOptimisticConcurrency() {
+        TransactionalContainerWrapper otherContainer = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        ItemVersionProvider versionProvider = new PropertyVersionProvider(TEST_PROPERTY_ID, "when");
+        transactionalContainer.setItemVersionProvider(versionProvider);
+        otherContainer.setItemVersionProvider(versionProvider);
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Object secondItemId = fullContainer.getIdByIndex(1);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        transactionalContainer.getItem(secondItemId);
+
+        ((Property<String>) otherContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        ((Property<String>) otherContainer.getContainerProperty(secondItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        otherContainer.commit();
+
+        // Changes to other items do not conflict
+        ((Property<String>) transactionalContainer.getContainerProperty(fullContainer.getIdByIndex(2),
+                TEST_PROPERTY_ID)).setValue(NEW_ITEM_DESCRIPTION);
+        assertTrue(transactionalContainer.getConflictingItemIds().isEmpty());
+
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(secondItemId);
+        assertEquals(Arrays.asList(firstItemId, secondItemId), transactionalContainer.getConflictingItemIds());
+        try {
+            transactionalContainer.commit();
+            fail("Commit of stale items should fail");
+        } catch (TxConflictException e) {
+            assertEquals(Arrays.asList(firstItemId, secondItemId), e.getConflictingItemIds());
+        }
+        assertEquals(OLD_ITEM_DESCRIPTION, backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID)
+                .getValue());
+        assertEquals(3, transactionalContainer.getPendingChanges().getUpdatedItems().size()
+                + transactionalContainer.getPendingChanges().getDeletedItemIds().size());
+
+        // Keeping the own changes
+        transactionalContainer.acceptCurrentVersions(Arrays.asList(firstItemId, secondItemId));
+        transactionalContainer.commit();
+        assertEquals(NEW_ITEM_DESCRIPTION, backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID)
+                .getValue());
+        assertFalse(backedContainer.containsId(secondItemId));
+
+        // The versions are up to date after the commit
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        transactionalContainer.commit();
+        assertEquals(OLD_ITEM_DESCRIPTION, backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID)
+                .getValue());
+
+        // Items removed by another transaction conflict as well
+        otherContainer.removeItem(firstItemId);
+        otherContainer.commit();
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        assertEquals(Arrays.asList(firstItemId), transactionalContainer.getConflictingItemIds());
+    }
+
+    @Test
+    public void testRollbackToSavepointBeforeSort() {
+        Savepoint savepoint = transactionalContainer.setSavepoint();
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{false});
+        Savepoint sortedSavepoint = transactionalContainer.setSavepoint();
+        transactionalContainer.rollbackToSavepoint(savepoint);
+        ContainerTestUtils.compareContainers(fullContainer, transactionalContainer);
+        try {
+            transactionalContainer.releaseSavepoint(sortedSavepoint);
+            fail("Later savepoint must be released");
+        } catch (IllegalArgumentException ignored) {
+        }
+        transactionalContainer.commit();
+
+        // Not sorted anymore, so the wrapper shows the inner container ids again
+        Object newItemId = 1000000L;
+        backedContainer.addItemAt(backedContainer.size(), newItemId);
+        assertEquals(backedContainer.size(), transactionalContainer.size());
+        assertEquals(newItemId, transactionalContainer.lastItemId());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommitAsync() throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Object committedValue = backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue();
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(1));
+
+        // The default commit target writes the wrapped container, which is read meanwhile
+        try {
+            transactionalContainer.commitAsync(queue, queue);
+            fail("The default commit target should be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        final List<ChangeSet> appliedChanges = new ArrayList<ChangeSet>();
+        transactionalContainer.setCommitTarget(new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+                appliedChanges.add(changes);
+            }
+        });
+
+        TxCommitFuture future = transactionalContainer.commitAsync(queue, queue);
+        final List<ChangeSet> committedChanges = new ArrayList<ChangeSet>();
+        future.addCallback(new TxCommitFuture.Callback() {
+            @Override
+            public void committed(ChangeSet changes) {
+                committedChanges.add(changes);
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                fail("Commit should not fail");
+            }
+        });
+        assertTrue(transactionalContainer.isCommitting());
+        try {
+            property.setValue(OLD_ITEM_DESCRIPTION);
+            fail("Edits should be rejected during a commit");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            transactionalContainer.removeItem(firstItemId);
+            fail("Edits should be rejected during a commit");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            transactionalContainer.setSavepoint();
+            fail("Savepoints should be rejected during a commit");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Applying the changes
+        tasks.remove(0).run();
+        assertEquals(1, appliedChanges.size());
+        assertEquals(committedValue,
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        assertFalse(future.isDone());
+        assertEquals(0, txCountingListener.commitCount);
+
+        // Completing the commit updates the wrapped container
+        tasks.remove(0).run();
+        assertEquals(NEW_ITEM_DESCRIPTION,
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        assertFalse(transactionalContainer.isCommitting());
+        assertTrue(future.isDone());
+        assertEquals(1, txCountingListener.commitCount);
+        assertEquals(1, committedChanges.size());
+        try {
+            assertSame(committedChanges.get(0), future.get());
+        } catch (ExecutionException e) {
+            fail("Commit should not fail");
+        }
+        ContainerTestUtils.compareContainers(transactionalContainer, backedContainer);
+
+        // A failed commit leaves the changes pending
+        transactionalContainer.setCommitTarget(new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+                throw new RuntimeException("Failed");
+            }
+        });
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        future = transactionalContainer.commitAsync(queue, queue);
+        tasks.remove(0).run();
+        tasks.remove(0).run();
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Commit should fail");
+        } catch (ExecutionException e) {
+            assertEquals("Failed", e.getCause().getMessage());
+        }
+        assertFalse(transactionalContainer.isCommitting());
+        assertEquals(1, transactionalContainer.getPendingChanges().getUpdatedItems().size());
+        transactionalContainer.rollback();
+        assertTrue(tasks.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommitAsyncWithVersions() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        CommitTarget externalTarget = new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+            }
+        };
+        TransactionalContainerWrapper otherContainer = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        ItemVersionProvider versionProvider = new PropertyVersionProvider(TEST_PROPERTY_ID, "when");
+        otherContainer.setItemVersionProvider(versionProvider);
+        transactionalContainer.setCommitTarget(externalTarget);
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        ((Property<String>) otherContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+
+        // Versions cannot be turned on while the completion is queued
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.commitAsync(queue, queue);
+        tasks.remove(0).run();
+        try {
+            transactionalContainer.setItemVersionProvider(versionProvider);
+            fail("Versions should not be set during an asynchronous commit");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        tasks.remove(0).run();
+        assertEquals(NEW_ITEM_DESCRIPTION,
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+
+        // The other wrapper has read the item before the commit, so its change conflicts
+        try {
+            otherContainer.commit();
+            fail("Commit of a stale item should fail");
+        } catch (TxConflictException e) {
+            assertEquals(Arrays.asList(firstItemId), e.getConflictingItemIds());
+        }
+        assertEquals(NEW_ITEM_DESCRIPTION,
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+
+        // With versions checked, an asynchronous commit is rejected and the changes stay pending
+        transactionalContainer.setItemVersionProvider(versionProvider);
+        property.setValue(OLD_ITEM_DESCRIPTION);
+        try {
+            transactionalContainer.commitAsync(queue, queue);
+            fail("An asynchronous commit should be rejected when versions are checked");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(tasks.isEmpty());
+        assertFalse(transactionalContainer.isCommitting());
+        assertEquals(1, transactionalContainer.getPendingChanges().getUpdatedItems().size());
+        otherContainer.rollback();
+        ((Property<String>) otherContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID))
+                .setValue("Other description");
+        otherContainer.commit();
+        try {
+            transactionalContainer.commit();
+            fail("Commit of a stale item should fail");
+        } catch (TxConflictException e) {
+            assertEquals(Arrays.asList(firstItemId), e.getConflictingItemIds());
+        }
+        assertEquals("Other description",
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCommitAsyncCompletionRejected() throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        Executor detachedUi = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new IllegalStateException("Detached");
+            }
+        };
+        final List<ChangeSet> appliedChanges = new ArrayList<ChangeSet>();
+        transactionalContainer.setCommitTarget(new CommitTarget() {
+            @Override
+            public void applyChanges(ChangeSet changes) {
+                appliedChanges.add(changes);
+            }
+        });
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Object secondItemId = fullContainer.getIdByIndex(1);
+        Property<String> property =
+                (Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID);
+        property.setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(secondItemId);
+
+        TxCommitFuture future = transactionalContainer.commitAsync(queue, detachedUi);
+        tasks.remove(0).run();
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Commit should fail");
+        } catch (ExecutionException e) {
+            assertEquals("Detached", e.getCause().getMessage());
+        }
+        assertFalse(transactionalContainer.isCommitting());
+        assertEquals(1, appliedChanges.size());
+
+        // The next change brings the wrapper up to date with the committed changes
+        ((Property<String>) transactionalContainer.getContainerProperty(fullContainer.getIdByIndex(2),
+                TEST_PROPERTY_ID)).setValue(NEW_ITEM_DESCRIPTION);
+        assertEquals(NEW_ITEM_DESCRIPTION,
+                backedContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        assertFalse(backedContainer.containsId(secondItemId));
+        ChangeSet pendingChanges = transactionalContainer.getPendingChanges();
+        assertEquals(1, pendingChanges.getUpdatedItems().size());
+        assertTrue(pendingChanges.getDeletedItemIds().isEmpty());
+        assertEquals(1, txCountingListener.commitCount);
+        assertTrue(tasks.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCompactSerialization() throws IOException, ClassNotFoundException {
+        int size = serialize(transactionalContainer).length;
+        for (Object itemId : transactionalContainer.getItemIds()) {
+            transactionalContainer.getItem(itemId);
+        }
+        // Wrappers of items without changes or listeners are not serialized
+        assertEquals(size, serialize(transactionalContainer).length);
+
+        Object newItemId = transactionalContainer.addItemAt(1);
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(3));
+        Object secondItemId = fullContainer.getIdByIndex(1);
+        ((Property<String>) transactionalContainer.getContainerProperty(secondItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.undo();
+
+        TransactionalContainerWrapper copy = (TransactionalContainerWrapper) new ObjectInputStream(
+                new ByteArrayInputStream(serialize(transactionalContainer))).readObject();
+        ContainerTestUtils.compareContainers(transactionalContainer, copy);
+        assertEquals(newItemId, copy.getIdByIndex(1));
+        assertEquals(1, copy.getPendingChanges().getInsertedItems().size());
+        assertEquals(1, copy.getPendingChanges().getDeletedItemIds().size());
+
+        // The journal still refers to the wrapper of the item
+        assertTrue(copy.redo());
+        assertEquals(NEW_ITEM_DESCRIPTION, copy.getContainerProperty(secondItemId, TEST_PROPERTY_ID).getValue());
+        assertEquals(1, copy.getPendingChanges().getUpdatedItems().size());
+
+        copy.rollback();
+        ContainerTestUtils.compareContainers(fullContainer, copy);
+
+        // Reordered ids are written in full
+        transactionalContainer.sort(new Object[]{TEST_PROPERTY_ID}, new boolean[]{false});
+        copy = (TransactionalContainerWrapper) new ObjectInputStream(
+                new ByteArrayInputStream(serialize(transactionalContainer))).readObject();
+        ContainerTestUtils.compareContainers(transactionalContainer, copy);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteAheadLog() throws IOException {
+        File file = File.createTempFile("txlog", ".log");
+        file.deleteOnExit();
+        TxWriteAheadLog log = new TxWriteAheadLog(file);
+        transactionalContainer.setWriteAheadLog(log);
+        assertTrue(log.isEmpty());
+
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Object newItemId = transactionalContainer.addItemAt(2);
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        ((Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(fullContainer.getIdByIndex(4));
+        assertFalse(log.isEmpty());
+
+        // A node dies, another one opens the log of the session
+        TxWriteAheadLog reopened = new TxWriteAheadLog(file);
+        assertEquals(log.getSize(), reopened.getSize());
+        TransactionalContainerWrapper recovered = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        recovered.recover(reopened);
+        ContainerTestUtils.compareContainers(transactionalContainer, recovered);
+        assertEquals(newItemId, recovered.getIdByIndex(2));
+        assertEquals(1, recovered.getPendingChanges().getUpdatedItems().size());
+        assertFalse(recovered.canUndo());
+
+        // Undo is logged as the reverting edit
+        recovered.removeItem(firstItemId);
+        ((Property<String>) recovered.getContainerProperty(newItemId, TEST_PROPERTY_ID)).setValue("Typo");
+        assertTrue(recovered.undo());
+        TransactionalContainerWrapper checkpointed = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        checkpointed.recover(new TxWriteAheadLog(file));
+        ContainerTestUtils.compareContainers(recovered, checkpointed);
+        assertEquals(NEW_ITEM_DESCRIPTION, checkpointed.getContainerProperty(newItemId, TEST_PROPERTY_ID).getValue());
+        assertEquals(1, checkpointed.getPendingChanges().getInsertedItems().size());
+        assertEquals(2, checkpointed.getPendingChanges().getDeletedItemIds().size());
+
+        try {
+            checkpointed.recover(reopened);
+            fail("Recovery into a wrapper with pending changes should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        recovered.commit();
+        assertTrue(reopened.isEmpty());
+        assertTrue(new TxWriteAheadLog(file).isEmpty());
+        log.close();
+        reopened.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteAheadLogUndoRedo() throws IOException {
+        File file = File.createTempFile("txlog", ".log");
+        file.deleteOnExit();
+        TxWriteAheadLog log = new TxWriteAheadLog(file);
+        transactionalContainer.setWriteAheadLog(log);
+
+        Object firstItemId = fullContainer.getIdByIndex(0);
+        Object removedItemId = fullContainer.getIdByIndex(3);
+        Object newItemId = transactionalContainer.addItemAt(1);
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        ((Property<String>) transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        transactionalContainer.removeItem(removedItemId);
+        transactionalContainer.removeItem(newItemId);
+
+        // Each step appends a record of its own instead of all pending changes
+        int size = log.getSize();
+        assertTrue(transactionalContainer.undo());
+        assertTrue(log.getSize() > size);
+        size = log.getSize();
+        assertTrue(transactionalContainer.undo());
+        assertTrue(transactionalContainer.redo());
+        assertTrue(transactionalContainer.undo());
+        assertTrue(transactionalContainer.undo());
+        assertTrue(log.getSize() - size < 100);
+
+        TxWriteAheadLog reopened = new TxWriteAheadLog(file);
+        TransactionalContainerWrapper recovered = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        recovered.recover(reopened);
+        ContainerTestUtils.compareContainers(transactionalContainer, recovered);
+        ChangeSet changes = recovered.getPendingChanges();
+        assertEquals(1, changes.getInsertedItems().size());
+        assertEquals(NEW_ITEM_DESCRIPTION, changes.getInsertedItems().get(0).getValues().get(TEST_PROPERTY_ID));
+        assertTrue(changes.getUpdatedItems().isEmpty());
+        assertTrue(changes.getDeletedItemIds().isEmpty());
+        assertEquals(transactionalContainer.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue(),
+                recovered.getContainerProperty(firstItemId, TEST_PROPERTY_ID).getValue());
+        log.close();
+        reopened.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteAheadLogCheckpointWithNullValue() throws IOException {
+        File file = File.createTempFile("txlog", ".log");
+        file.deleteOnExit();
+        TxWriteAheadLog log = new TxWriteAheadLog(file);
+        transactionalContainer.setWriteAheadLog(log);
+
+        Object nulledItemId = fullContainer.getIdByIndex(3);
+        Object editedItemId = fullContainer.getIdByIndex(4);
+        ((Property<String>) transactionalContainer.getContainerProperty(nulledItemId, TEST_PROPERTY_ID)).setValue(null);
+        Savepoint savepoint = transactionalContainer.setSavepoint();
+        ((Property<String>) transactionalContainer.getContainerProperty(editedItemId, TEST_PROPERTY_ID))
+                .setValue(OLD_ITEM_DESCRIPTION);
+        // Logged as a checkpoint of all pending changes
+        transactionalContainer.rollbackToSavepoint(savepoint);
+
+        TxWriteAheadLog reopened = new TxWriteAheadLog(file);
+        TransactionalContainerWrapper recovered = new TransactionalContainerWrapper(backedContainer,
+                backedContainer);
+        recovered.recover(reopened);
+        assertNull(recovered.getContainerProperty(nulledItemId, TEST_PROPERTY_ID).getValue());
+        assertEquals(fullContainer.getContainerProperty(editedItemId, TEST_PROPERTY_ID).getValue(),
+                recovered.getContainerProperty(editedItemId, TEST_PROPERTY_ID).getValue());
+        List<ChangeSet.UpdatedItem> updatedItems = recovered.getPendingChanges().getUpdatedItems();
+        assertEquals(1, updatedItems.size());
+        assertEquals(nulledItemId, updatedItems.get(0).getItemId());
+        log.close();
+        reopened.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMetrics() throws JMException {
+        TxMetrics metrics = new TxMetrics(transactionalContainer);
+        transactionalContainer.addMetricsListener(metrics);
+
+        Object newItemId = transactionalContainer.addItemAt(0);
+        ((Property<String>) transactionalContainer.getContainerProperty(newItemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION);
+        ((Property<String>) transactionalContainer.getContainerProperty(fullContainer.getIdByIndex(0),
+                TEST_PROPERTY_ID)).setValue(NEW_ITEM_DESCRIPTION);
+        transactionalContainer.removeItems(Arrays.asList(fullContainer.getIdByIndex(1),
+                fullContainer.getIdByIndex(2)));
+        assertEquals(1, metrics.getPendingInsertCount());
+        assertEquals(1, metrics.getPendingUpdateCount());
+        assertEquals(2, metrics.getPendingDeleteCount());
+        assertEquals(2, metrics.getPendingValueCount());
+        assertEquals(1, metrics.getCount(TxOperation.REMOVE_ITEMS));
+        // transactionStarted
+        assertEquals(1, metrics.getCount(TxOperation.TX_LISTENERS));
+
+        transactionalContainer.commit();
+        assertEquals(1, metrics.getCount(TxOperation.COMMIT));
+        assertEquals(2, metrics.getCount(TxOperation.TX_LISTENERS));
+        assertEquals(0, metrics.getPendingInsertCount());
+        assertEquals(0, metrics.getPendingDeleteCount());
+        assertTrue(metrics.getMaxNanos(TxOperation.COMMIT) > 0);
+        assertTrue(metrics.getPercentileNanos(TxOperation.COMMIT, 99) <= metrics.getMaxNanos(TxOperation.COMMIT));
+
+        // addItemAt() filters all items as well
+        long filterCount = metrics.getCount(TxOperation.FILTER);
+        transactionalContainer.addContainerFilter(TEST_PROPERTY_ID, NEW_ITEM_DESCRIPTION, false, false);
+        transactionalContainer.removeAllContainerFilters();
+        assertEquals(filterCount + 2, metrics.getCount(TxOperation.FILTER));
+        transactionalContainer.reset();
+        assertEquals(1, metrics.getCount(TxOperation.RESET));
+        assertEquals(filterCount + 3, metrics.getCount(TxOperation.FILTER));
+        assertEquals(0, metrics.getCount(TxOperation.ROLLBACK));
+
+        String name = "org.vaadin.data.tx:type=TxMetrics,name=test";
+        metrics.registerMBean(name);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(new ObjectName(name), "CommitCount"));
+            assertEquals(filterCount + 3, server.getAttribute(new ObjectName(name), "FilterCount"));
+            assertTrue((Double) server.getAttribute(new ObjectName(name), "CommitMeanMicros") > 0);
+            assertEquals(0, server.getAttribute(new ObjectName(name), "PendingDeletes"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        // The gauges follow edits reverted by undo and rollbacks to a savepoint
+        Object itemId = transactionalContainer.getIdByIndex(0);
+        Savepoint savepoint = transactionalContainer.setSavepoint();
+        ((Property<String>) transactionalContainer.getContainerProperty(itemId, TEST_PROPERTY_ID))
+                .setValue(NEW_ITEM_DESCRIPTION + 1);
+        transactionalContainer.removeItem(transactionalContainer.getIdByIndex(1));
+        assertEquals(1, metrics.getPendingUpdateCount());
+        assertEquals(1, metrics.getPendingValueCount());
+        assertEquals(1, metrics.getPendingDeleteCount());
+        transactionalContainer.undo();
+        assertEquals(0, metrics.getPendingDeleteCount());
+        transactionalContainer.rollbackToSavepoint(savepoint);
+        assertEquals(0, metrics.getPendingUpdateCount());
+        assertEquals(0, metrics.getPendingValueCount());
+
+        // Nothing is measured without metrics listeners
+        transactionalContainer.removeMetricsListener(metrics);
+        transactionalContainer.removeItem(transactionalContainer.firstItemId());
+        transactionalContainer.rollback();
+        assertEquals(0, metrics.getCount(TxOperation.ROLLBACK));
+    }
+
+    @Test
+    public void testPagedInnerIds() throws IOException, ClassNotFoundException {
+        MeetupBeanContainer lazyContainer = new LazyMeetupContainer();
+        List<Object> expectedIds = new ArrayList<Object>();
+        for (long id = 0; id < 1000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+            expectedIds.add(id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        assertEquals(expectedIds.subList(100, 150), wrapper.getItemIds(100, 50));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            if (random.nextInt(3) == 0) {
+                Object itemId = expectedIds.remove(random.nextInt(expectedIds.size()));
+                assertTrue(wrapper.removeItem(itemId));
+            } else if (random.nextInt(4) == 0 && wrapper.canUndo()) {
+                wrapper.undo();
+                expectedIds = new ArrayList<Object>(wrapper.getItemIds(0, wrapper.size()));
+            } else {
+                int index = random.nextInt(expectedIds.size() + 1);
+                expectedIds.add(index, wrapper.addItemAt(index));
+            }
+        }
+        assertEquals(expectedIds, new ArrayList<Object>(wrapper.getItemIds()));
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+        for (int i = 0; i < expectedIds.size(); i += 7) {
+            assertEquals(expectedIds.get(i), wrapper.getIdByIndex(i));
+            assertEquals(i, wrapper.indexOfId(expectedIds.get(i)));
+        }
+
+        TransactionalContainerWrapper copy = (TransactionalContainerWrapper) new ObjectInputStream(
+                new ByteArrayInputStream(serialize(wrapper))).readObject();
+        assertEquals(expectedIds, copy.getItemIds(0, copy.size()));
+
+        Savepoint savepoint = wrapper.setSavepoint();
+        wrapper.removeItems(expectedIds.subList(0, 10));
+        wrapper.addItems(5, Arrays.asList(5000L, 5001L));
+        wrapper.rollbackToSavepoint(savepoint);
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+
+        wrapper.commit();
+        assertEquals(expectedIds, lazyContainer.getItemIds(0, lazyContainer.size()));
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+
+        // The pending changes are positioned again when another wrapper commits
+        wrapper.removeItem(expectedIds.remove(10));
+        expectedIds.add(20, wrapper.addItemAt(20));
+        TransactionalContainerWrapper otherWrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        expectedIds.add(0, otherWrapper.addItemAt(0));
+        otherWrapper.commit();
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+        assertEquals(21, wrapper.indexOfId(expectedIds.get(21)));
+    }
+
+    @Test
+    public void testCommitKeepingInnerSize() {
+        MeetupBeanContainer sharedContainer = new MeetupBeanContainer();
+        for (long id = 0; id < 10; id++) {
+            sharedContainer.addItemAt(sharedContainer.size(), id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(sharedContainer, sharedContainer);
+        TransactionalContainerWrapper otherWrapper = new TransactionalContainerWrapper(sharedContainer,
+                sharedContainer);
+        wrapper.removeItem(5L);
+        otherWrapper.removeItem(1L);
+        Object newItemId = otherWrapper.addItemAt(otherWrapper.size());
+        otherWrapper.commit();
+        assertEquals(10, sharedContainer.size());
+
+        // The removal is positioned again although the size of the inner container is the same
+        assertEquals(Arrays.<Object>asList(0L, 2L, 3L, 4L, 6L, 7L, 8L, 9L, newItemId),
+                new ArrayList<Object>(wrapper.getItemIds()));
+        assertEquals(4, wrapper.indexOfId(6L));
+        assertEquals(-1, wrapper.indexOfId(5L));
+        assertEquals(Arrays.<Object>asList(5L), wrapper.getPendingChanges().getDeletedItemIds());
+    }
+
+    @Test
+    public void testManyItemSetChanges() {
+        MeetupBeanContainer lazyContainer = new LazyMeetupContainer();
+        List<Object> originalIds = new ArrayList<Object>();
+        for (long id = 0; id < 20000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+            originalIds.add(id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        List<Object> expectedIds = new ArrayList<Object>(originalIds);
+        Random random = new Random(7);
+        for (int i = 1; i <= 1000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 4) {
+                assertTrue(wrapper.removeItem(expectedIds.remove(random.nextInt(expectedIds.size()))));
+            } else if (operation < 8) {
+                int index = random.nextInt(expectedIds.size() + 1);
+                expectedIds.add(index, wrapper.addItemAt(index));
+            } else if (operation == 8) {
+                // More ids than fit a page are removed in a single pass
+                Set<Object> removedIds = new HashSet<Object>();
+                for (int j = 0; j < 150; j++) {
+                    removedIds.add(expectedIds.get(random.nextInt(expectedIds.size())));
+                }
+                wrapper.removeItems(removedIds);
+                expectedIds.removeAll(removedIds);
+            } else {
+                int index = random.nextInt(expectedIds.size() + 1);
+                List<Object> newIds = Arrays.<Object>asList(1000000L + 2 * i, 1000001L + 2 * i);
+                wrapper.addItems(index, newIds);
+                expectedIds.addAll(index, newIds);
+            }
+            if (i % 100 == 0) {
+                assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+                for (int j = 0; j < 50; j++) {
+                    int index = random.nextInt(expectedIds.size());
+                    assertEquals(expectedIds.get(index), wrapper.getIdByIndex(index));
+                    assertEquals(index, wrapper.indexOfId(expectedIds.get(index)));
+                }
+            }
+        }
+        wrapper.rollback();
+        assertEquals(originalIds, wrapper.getItemIds(0, wrapper.size()));
+    }
+
+    @Test
+    public void testSharedContainerItemSetChanges() {
+        MeetupBeanContainer sharedContainer = new LazyMeetupContainer();
+        for (long id = 0; id < 2000; id++) {
+            sharedContainer.addItemAt(sharedContainer.size(), id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(sharedContainer, sharedContainer);
+        List<Object> expectedIds = new ArrayList<Object>(wrapper.getItemIds(0, wrapper.size()));
+        Random random = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            if (random.nextBoolean()) {
+                assertTrue(wrapper.removeItem(expectedIds.remove(random.nextInt(expectedIds.size()))));
+            } else {
+                int index = random.nextInt(expectedIds.size() + 1);
+                expectedIds.add(index, wrapper.addItemAt(index));
+            }
+        }
+
+        // Another wrapper removes an item and adds one, keeping the size of the container
+        Object removedId = null;
+        for (int index = 1; removedId == null; index++) {
+            if ((Long) expectedIds.get(index - 1) < 2000 && (Long) expectedIds.get(index) < 2000) {
+                removedId = expectedIds.remove(index);
+            }
+        }
+        TransactionalContainerWrapper otherWrapper = new TransactionalContainerWrapper(sharedContainer,
+                sharedContainer);
+        otherWrapper.removeItem(removedId);
+        expectedIds.add(0, otherWrapper.addItemAt(0));
+        otherWrapper.commit();
+        assertEquals(2000, sharedContainer.size());
+
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+        for (int i = 0; i < expectedIds.size(); i += 13) {
+            assertEquals(expectedIds.get(i), wrapper.getIdByIndex(i));
+            assertEquals(i, wrapper.indexOfId(expectedIds.get(i)));
+        }
+        assertEquals(-1, wrapper.indexOfId(removedId));
+
+        int index = random.nextInt(expectedIds.size() + 1);
+        expectedIds.add(index, wrapper.addItemAt(index));
+        wrapper.removeItem(expectedIds.remove(random.nextInt(expectedIds.size())));
+        wrapper.commit();
+        assertEquals(expectedIds, sharedContainer.getItemIds(0, sharedContainer.size()));
+    }
+
+    @Test
+    public void testUnusedWrapperListenerRemoved() {
+        MeetupBeanContainer sharedContainer = new MeetupBeanContainer();
+        for (long id = 0; id < 10; id++) {
+            sharedContainer.addItemAt(sharedContainer.size(), id);
+        }
+        int listenerCount = sharedContainer.getListeners(Container.ItemSetChangeEvent.class).size();
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(sharedContainer, sharedContainer);
+        wrapper.removeItem(3L);
+        assertEquals(listenerCount + 1, sharedContainer.getListeners(Container.ItemSetChangeEvent.class).size());
+
+        // The wrapper of an expired session is dropped with its changes pending
+        WeakReference<TransactionalContainerWrapper> wrapperReference =
+                new WeakReference<TransactionalContainerWrapper>(wrapper);
+        wrapper = null;
+        for (int i = 0; i < 50 && wrapperReference.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(wrapperReference.get());
+
+        TransactionalContainerWrapper otherWrapper = new TransactionalContainerWrapper(sharedContainer,
+                sharedContainer);
+        otherWrapper.addItemAt(0);
+        otherWrapper.commit();
+        assertEquals(listenerCount, sharedContainer.getListeners(Container.ItemSetChangeEvent.class).size());
+    }
+
+    @Test
+    public void testInnerIdPositions() {
+        LazyMeetupContainer lazyContainer = new LazyMeetupContainer();
+        for (long id = 0; id < 20000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        lazyContainer.indexOfIdCalls = 0;
+        assertEquals(Arrays.asList(15000L, 15001L), wrapper.getItemIds(15000, 2));
+        Object firstNewId = wrapper.addItemAfter(15001L);
+        Object secondNewId = wrapper.addItemAfter(15000L);
+        Object thirdNewId = wrapper.addItemAfter(firstNewId);
+        assertEquals(15000, wrapper.indexOfId(15000L));
+        assertEquals(15003, wrapper.indexOfId(firstNewId));
+        assertEquals(0, lazyContainer.indexOfIdCalls);
+        // An id not read before is looked up once
+        assertTrue(wrapper.removeItem(15050L));
+        assertEquals(-1, wrapper.indexOfId(15050L));
+        assertEquals(1, lazyContainer.indexOfIdCalls);
+
+        List<ChangeSet.InsertedItem> insertedItems = wrapper.getPendingChanges().getInsertedItems();
+        assertEquals(3, insertedItems.size());
+        assertEquals(secondNewId, insertedItems.get(0).getItemId());
+        assertEquals(15000L, insertedItems.get(0).getPreviousItemId());
+        assertEquals(15001, insertedItems.get(0).getIndex());
+        assertEquals(firstNewId, insertedItems.get(1).getItemId());
+        assertEquals(15001L, insertedItems.get(1).getPreviousItemId());
+        assertEquals(thirdNewId, insertedItems.get(2).getItemId());
+        assertEquals(firstNewId, insertedItems.get(2).getPreviousItemId());
+        assertEquals(15004, insertedItems.get(2).getIndex());
+
+        wrapper.commit();
+        assertEquals(Arrays.asList(15000L, secondNewId, 15001L, firstNewId, thirdNewId, 15002L),
+                lazyContainer.getItemIds(15000, 6));
+        assertFalse(lazyContainer.containsId(15050L));
+        // Positions recorded before the commit are checked and looked up again
+        assertEquals(15005, wrapper.indexOfId(15002L));
+        assertEquals(15001, wrapper.indexOfId(secondNewId));
+    }
+
+    @Test
+    public void testChangedIdPositions() {
+        LazyMeetupContainer lazyContainer = new LazyMeetupContainer();
+        for (long id = 0; id < 20000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        List<Object> expectedIds = new ArrayList<Object>(wrapper.getItemIds(0, wrapper.size()));
+        // More changes than positions cached by TxInnerIdPositions
+        List<Object> removedIds = new ArrayList<Object>();
+        for (long id = 0; id < 20000; id += 10) {
+            removedIds.add(id);
+        }
+        wrapper.removeItems(removedIds);
+        expectedIds.removeAll(removedIds);
+        List<Object> anchorIds = new ArrayList<Object>();
+        for (int index = 5; index < 15000; index += 10) {
+            anchorIds.add(expectedIds.get(index));
+            expectedIds.add(index, wrapper.addItemAt(index));
+        }
+        wrapper.getItemIds(15000, 50);
+        lazyContainer.indexOfIdCalls = 0;
+
+        // The changes index the ids they refer to
+        for (int i = 0; i < anchorIds.size(); i += 100) {
+            Object anchorId = anchorIds.get(i);
+            assertEquals(expectedIds.indexOf(anchorId), wrapper.indexOfId(anchorId));
+        }
+        assertEquals(-1, wrapper.indexOfId(removedIds.get(7)));
+        assertEquals(0, lazyContainer.indexOfIdCalls);
+
+        // Another wrapper commits, the changes are positioned again with a single pass over the ids
+        TransactionalContainerWrapper otherWrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        expectedIds.add(0, otherWrapper.addItemAt(0));
+        otherWrapper.commit();
+        lazyContainer.indexOfIdCalls = 0;
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+        assertEquals(expectedIds.indexOf(anchorIds.get(3)), wrapper.indexOfId(anchorIds.get(3)));
+        assertEquals(0, lazyContainer.indexOfIdCalls);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFilteredIdPositions() {
+        LazyMeetupContainer lazyContainer = new LazyMeetupContainer();
+        List<Object> expectedIds = new ArrayList<Object>();
+        for (long id = 0; id < 20000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+            if (id % 10 == 0) {
+                expectedIds.add(id);
+            } else {
+                lazyContainer.getItem(id).getBean().setDescription("hidden");
+            }
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        wrapper.addContainerFilter(new Not(new Compare.Equal(TEST_PROPERTY_ID, "hidden")));
+        assertEquals(expectedIds.size(), wrapper.size());
+        lazyContainer.indexOfIdCalls = 0;
+
+        // The filtered index is found with a binary search on the positions of the unfiltered ids
+        ((Property<String>) wrapper.getUnfilteredItem(15005L).getItemProperty(TEST_PROPERTY_ID)).setValue("shown");
+        expectedIds.add(1501, 15005L);
+        assertEquals(1501, wrapper.indexOfId(15005L));
+        ((Property<String>) wrapper.getContainerProperty(15010L, TEST_PROPERTY_ID)).setValue("hidden");
+        expectedIds.remove(15010L);
+        assertEquals(-1, wrapper.indexOfId(15010L));
+        assertEquals(1502, wrapper.indexOfId(15020L));
+        // Only the hidden item shown is looked up, the positions of the visible ones are kept when filtering
+        assertEquals(1, lazyContainer.indexOfIdCalls);
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+
+        // The sorted ids are searched by scanning them
+        wrapper.sort(new Object[]{"id"}, new boolean[]{false});
+        Collections.reverse(expectedIds);
+        ((Property<String>) wrapper.getUnfilteredItem(4995L).getItemProperty(TEST_PROPERTY_ID)).setValue("shown");
+        expectedIds.add(expectedIds.indexOf(4990L), 4995L);
+        ((Property<String>) wrapper.getContainerProperty(15005L, TEST_PROPERTY_ID)).setValue("hidden");
+        expectedIds.remove(15005L);
+        assertEquals(expectedIds, wrapper.getItemIds(0, wrapper.size()));
+        assertEquals(expectedIds.indexOf(4995L), wrapper.indexOfId(4995L));
+    }
+
+    @Test
+    public void testItemSetChangeEventPositions() {
+        LazyMeetupContainer lazyContainer = new LazyMeetupContainer();
+        for (long id = 0; id < 20000; id++) {
+            lazyContainer.addItemAt(lazyContainer.size(), id);
+        }
+        TransactionalContainerWrapper wrapper = new TransactionalContainerWrapper(lazyContainer, lazyContainer);
+        UniversalCountingListener listener = new UniversalCountingListener();
+        wrapper.addItemSetChangeListener(listener);
+        List<String> events = listener.itemsetChanges;
+        wrapper.getItemIds(15000, 50);
+        lazyContainer.pageReads = 0;
+
+        // The events are computed from the positions of the changed items, the other ids are not read
+        wrapper.removeItems(Arrays.asList(15010L, 15011L, 15012L, 15020L));
+        assertEquals(Arrays.asList("remove 15010+3", "remove 15017+1"), events);
+
+        Savepoint savepoint = wrapper.setSavepoint();
+        wrapper.addItemAt(15005);
+        wrapper.removeItem(15030L);
+        events.clear();
+        wrapper.rollbackToSavepoint(savepoint);
+        assertEquals(Arrays.asList("remove 15005+1", "add 15026+1"), events);
+
+        events.clear();
+        wrapper.rollback();
+        assertEquals(Arrays.asList("add 15010+3", "add 15020+1"), events);
+        assertEquals(0, lazyContainer.pageReads);
+        assertEquals(15030, wrapper.indexOfId(15030L));
+    }
+
+    /**
+     * Container standing for a lazy one, which fails if all its ids are read at once, and counts the scans for an id
+     * and the pages of ids read.
+     */
+    private static class LazyMeetupContainer extends MeetupBeanContainer {
+        private int indexOfIdCalls;
+        private int pageReads;
+
+        @Override
+        public List<Long> getItemIds() {
+            throw new AssertionError("All ids of the inner container should not be read");
+        }
+
+        @Override
+        public int indexOfId(Object itemId) {
+            indexOfIdCalls++;
+            return super.indexOfId(itemId);
+        }
+
+        @Override
+        public List<Long> getItemIds(int startIndex, int numberOfIds) {
+            pageReads++;
+            return super.getItemIds(startIndex, numberOfIds);
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(object);
+        oos.close();
+        return baos.toByteArray();
+    }
+
     @Test
     public void testSerialization() throws IOException, ClassNotFoundException {
         transactionalContainer.addItemAfter(transactionalContainer.firstItemId());
@@ -19,6 +19,9 @@ import com.vaadin.data.Container;
 import com.vaadin.data.Property;
 import org.vaadin.data.tx.TxListener;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static junit.framework.Assert.fail;
 
 /**
@@ -33,6 +36,10 @@ class UniversalCountingListener implements TxListener, Container.ItemSetChangeLi
     public int rollbackCount = 0;
     public int valueChangeCount = 0;
     public int itemsetChangeCount = 0;
+    /**
+     * Item set change events as "add index+count", "remove index+count" or "change".
+     */
+    public final List<String> itemsetChanges = new ArrayList<String>();
 
     @Override
     public void transactionStarted(boolean implicit) {
@@ -55,6 +62,15 @@ class UniversalCountingListener implements TxListener, Container.ItemSetChangeLi
     @Override
     public void containerItemSetChange(Container.ItemSetChangeEvent itemSetChangeEvent) {
         itemsetChangeCount++;
+        if (itemSetChangeEvent instanceof Container.Indexed.ItemAddEvent) {
+            Container.Indexed.ItemAddEvent addEvent = (Container.Indexed.ItemAddEvent) itemSetChangeEvent;
+            itemsetChanges.add("add " + addEvent.getFirstIndex() + "+" + addEvent.getAddedItemsCount());
+        } else if (itemSetChangeEvent instanceof Container.Indexed.ItemRemoveEvent) {
+            Container.Indexed.ItemRemoveEvent removeEvent = (Container.Indexed.ItemRemoveEvent) itemSetChangeEvent;
+            itemsetChanges.add("remove " + removeEvent.getFirstIndex() + "+" + removeEvent.getRemovedItemsCount());
+        } else {
+            itemsetChanges.add("change");
+        }
     }
 
     @Override